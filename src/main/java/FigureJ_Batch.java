@@ -0,0 +1,57 @@
+/*
+ * renders saved figures again from their source images, without opening them, @see windows.FigureRenderer.
+ * from a macro: run("Batch Render...", "input=[folder or .figurej file] output=[folder]");
+ * from the command line, e.g. to regenerate figures every night:
+ * java -cp ij.jar:FigureJ.jar FigureJ_Batch <folder or .figurej file> <output folder>
+ */
+import ij.IJ;
+import ij.Macro;
+import ij.plugin.PlugIn;
+
+import java.io.File;
+import java.util.List;
+
+import windows.FigureRenderer;
+
+public class FigureJ_Batch implements PlugIn {
+
+	public void run(String arg) {
+		String input, output;
+		String options = Macro.getOptions();
+		if (options != null) {
+			input = Macro.getValue(options, "input", null);
+			output = Macro.getValue(options, "output", null);
+		}
+		else {
+			input = IJ.getDirectory("Select folder with FigureJ figures");
+			if (input == null)
+				return;
+			output = IJ.getDirectory("Select output folder");
+		}
+		if (input == null || output == null) {
+			IJ.error("FigureJ", "Input and output folders are required");
+			return;
+		}
+		render(input, output);
+	}
+
+	/** @return true if every figure found was rendered */
+	private static boolean render(String input, String output) {
+		List<String> figures = FigureRenderer.findFigures(new File(input));
+		if (figures.isEmpty()) {
+			IJ.log("FigureJ: no figures found in "+input);
+			return true;
+		}
+		int done = new FigureRenderer(output).renderAll(figures);
+		IJ.log("FigureJ: "+done+" of "+figures.size()+" figures rendered to "+output);
+		return done == figures.size();
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.err.println("usage: FigureJ_Batch <folder or .figurej file> <output folder>");
+			System.exit(2);
+		}
+		System.exit(render(args[0], args[1]) ? 0 : 1);
+	}
+}
@@ -61,7 +61,6 @@ import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 
 import loci.formats.FormatException;
-import loci.plugins.BF;
 import plugIns.LabelDrawer;
 import plugIns.Link;
 import treeMap.LeafPanel;
@@ -73,9 +72,13 @@ import utilities.MyImageMath;
 import utilities.Serializer;
 import windows.MainWindow;
 import windows.NewFigureDialog;
+import windows.PanelFillJob;
+import windows.PanelLoadJob;
 import windows.PluginPanel;
 import windows.ROIToolWindow;
 import dataSets.DataSource;
+import dataSets.DataSourceLoader;
+import dataSets.SourcePrefetcher;
 
 /**
  * @author Edda Zinck
@@ -352,15 +355,16 @@ public class FigureJ_Tool extends PlugInTool implements ImageListener,
 				double[] yVals = selectionWindow.getYVals().clone();
 
 				LeafPanel selectedPanel = (LeafPanel) temp;
-				DataSource imageData = selectedPanel.getImgData();
+				// the panel's data source takes over the new region together
+				// with the pixels, @see PanelFillJob
+				DataSource imageData = selectedPanel.getImgData().clone();
 
 				// store detailed information about the image the user chose for
 				// a panel
 				imageData.setCoords(xVals, yVals);
-				imageData.setPixelCalibration(
-						openedImage.getCalibration().pixelWidth, openedImage
-								.getCalibration().getUnit());
 				imageData.setMacro(macro);
+				imageData.setInterpolation((String) interpolationType
+						.getSelectedItem());
 				imageData.setDisplayRange(openedImage.getDisplayRangeMin(),
 						openedImage.getDisplayRangeMax());
 
@@ -373,23 +377,32 @@ public class FigureJ_Tool extends PlugInTool implements ImageListener,
 						.setActChs(IJ
 								.runMacro("ch='';if (is('composite')) Stack.getActiveChannels(ch);return ch;"));
 
-				filePathLabel.setText(imageData.getFileDirectory()
-						+ imageData.getFileName());
-				/// TODO: DEBUG FROM HERE
-				/// IJ.log(imageData.getFileDirectory() + imageData.getFileName());
-
-				// FILL THE PANEL with the pixels selected from the image
-				selectedPanel.setPixels(MyImageMath.getPixels(openedImage,
-						xVals, yVals, selectedPanel.getW(),
-						selectedPanel.getH(),
-						(String) interpolationType.getSelectedItem()));
 				// calculate the calibration
 				Line top = new Line(xVals[0], yVals[0], xVals[3], yVals[3]);
 				double factor = top.getRawLength() / selectedPanel.getW();
 				imageData.setPixelCalibration(
 						factor * openedImage.getCalibration().pixelWidth,
 						openedImage.getCalibration().getUnit());
-				mainWindow.draw();
+
+				filePathLabel.setText(imageData.getFileDirectory()
+						+ imageData.getFileName());
+				/// TODO: DEBUG FROM HERE
+				/// IJ.log(imageData.getFileDirectory() + imageData.getFileName());
+
+				// FILL THE PANEL with the pixels selected from the image; the
+				// region is taken from the image now, the slow interpolation
+				// is done in the background and the figure is redrawn when it
+				// is done
+				new PanelFillJob(selectedPanel, mainWindow,
+						MyImageMath.prepare(openedImage, xVals, yVals,
+								selectedPanel.getW(), selectedPanel.getH(),
+								(String) interpolationType.getSelectedItem()),
+						imageData).start();
+				// refills of the panel take the plane shown from the cache
+				// instead of reading the file again
+				if (macro == null || macro.trim().equals(""))
+					DataSourceLoader.keepPlane(openedImage,
+							imageData.getFilePath(), imageData.getSeries());
 			}
 
 		setROIToolOpenable(true);
@@ -610,6 +623,9 @@ public class FigureJ_Tool extends PlugInTool implements ImageListener,
             if (gd.wasCanceled()) return;
 			}
 			if (mainWindow !=null ) mainWindow.setQuitWithoutSaving(true);
+			PanelFillJob.cancelAll();
+			PanelLoadJob.cancelAll();
+			SourcePrefetcher.cancelAll();
 			wEvent.getWindow().dispose();
 			appNewOpenSaveWindow.dispose();
 
@@ -1051,9 +1067,6 @@ public class FigureJ_Tool extends PlugInTool implements ImageListener,
 						}
 					}
 
-					// fire custom progress bar b/c some transforms are slow
-					Thread t = new Thread(new CustomProgressBar());
-					t.start();
 					try {
 						transferROIDataToPanel(recordedMacro);
 					} catch (Exception e1) {
@@ -1062,8 +1075,6 @@ public class FigureJ_Tool extends PlugInTool implements ImageListener,
 					}
 					openedImage.close();
 					IJ.run("Select None");
-					t.interrupt();
-					IJ.showStatus("done.");
 				}
 			});
 
@@ -1162,6 +1173,7 @@ public class FigureJ_Tool extends PlugInTool implements ImageListener,
 					data.setFileDirectory("");
 					data.setFileName("");
 					data.setMacro("");
+					data.setSeries(0);
 					data.setSlice(1);
 					data.setChannel(1);
 					data.setFrame(1);
@@ -1178,7 +1190,8 @@ public class FigureJ_Tool extends PlugInTool implements ImageListener,
 			debugButton.addActionListener(new ActionListener() {
 				// TEST BUTTON ONLY VISIBLE WHEN FIGUREJ IN DEBUG MODE.
 				public void actionPerformed(ActionEvent e) {
-					mainWindow.getRootPanel().addChild(new LeafPanel(100, 100, 100, 100));
+					mainWindow.getRootPanel().addChild(new LeafPanel(100, 100, 100, 100,
+							mainWindow.getRootPanel().getPanelColor()));
 					mainWindow.draw();
 				}
 			});
@@ -1210,6 +1223,37 @@ public class FigureJ_Tool extends PlugInTool implements ImageListener,
 			clearPixelsButton.setToolTipText("remove image from panel");
 		}
 
+		/**
+		 * lets the user choose one of the images of a file holding several,
+		 * listed from the metadata of the file
+		 *
+		 * @return index of the series, 0 if the file holds one image; -1 if
+		 *         the user canceled or the file could not be read
+		 */
+		private int chooseSeries(String path) {
+			DataSourceLoader.Series[] series;
+			try {
+				series = DataSourceLoader.readSeries(path);
+			} catch (FormatException e) {
+				IJ.log("Bioformats had problems reading this file.");
+				return -1;
+			} catch (IOException e) {
+				IJ.log("Bioformats had problems reading this file.");
+				return -1;
+			}
+			if (series.length <= 1)
+				return series.length - 1;
+			String[] choices = new String[series.length];
+			for (int i = 0; i < series.length; i++)
+				choices[i] = series[i].toString();
+			GenericDialog gd = new GenericDialog("Choose an image");
+			gd.addChoice("Series", choices, choices[0]);
+			gd.showDialog();
+			if (gd.wasCanceled())
+				return -1;
+			return gd.getNextChoiceIndex();
+		}
+
 		/**
 		 * opens the image that belongs to the selected panel or a file chooser
 		 * dialog if non assigned yet; starts the tool which is used to select
@@ -1256,22 +1300,18 @@ public class FigureJ_Tool extends PlugInTool implements ImageListener,
 				String path = data.getFileDirectory() + data.getFileName();
 				// IJ.log(path);
 
-				// TODO improve robustness for complex types, eg. lif datasets as handled by bioformats!!
-
-				if (path.toLowerCase().endsWith(".czi")
-						|| path.toLowerCase().endsWith(".zvi")) {
-					try {
-						ImagePlus[] bfi = BF.openImagePlus(path);
-						openedImage = bfi[0];
-					} catch (FormatException e) {
-						e.printStackTrace();
-						IJ.log("Bioformats had problems reading this file.");
-					} catch (IOException e) {
-						e.printStackTrace();
-						IJ.log("Bioformats had problems reading this file.");
+				if (DataSourceLoader.isBioFormatsFile(path)) {
+					// only the series chosen is opened, its planes are read
+					// when they are shown
+					int series = chooseSeries(path);
+					if (series >= 0) {
+						data.setSeries(series);
+						openedImage = DataSourceLoader.openImage(path, series,
+								true);
 					}
 				} else {
-					openedImage = IJ.openImage(path);
+					data.setSeries(0);
+					openedImage = DataSourceLoader.openImage(path, 0, true);
 				}
 				if (openedImage == null) {
 					tryToCatchOpenFail(nrOfOpenImgs); // grab files that are
@@ -1287,23 +1327,10 @@ public class FigureJ_Tool extends PlugInTool implements ImageListener,
 				// selectionWindow.init(openedImage);
 
 			} else {
-				String path = activePanel.getImgData().getFileDirectory()
-						+ data.getFileName();
-				if (path.toLowerCase().endsWith(".czi")
-						|| path.toLowerCase().endsWith(".zvi")) {
-					try {
-						ImagePlus[] bfi = BF.openImagePlus(path);
-						openedImage = bfi[0];
-					} catch (FormatException e) {
-						e.printStackTrace();
-						IJ.log("Bioformats has issues reading this file.");
-					} catch (IOException e) {
-						e.printStackTrace();
-						IJ.log("Bioformats has issues reading this file.");
-					}
-				} else {
-					openedImage = IJ.openImage(path);
-				}
+				String path = data.getFilePath();
+				// recently used and prefetched images come from the cache
+				openedImage = DataSourceLoader.openImage(path,
+						data.getSeries(), true);
 				// else open the assigned image and rotate the ROI to its
 				// last angle.
 				if (openedImage == null) {
@@ -1777,22 +1804,6 @@ public class FigureJ_Tool extends PlugInTool implements ImageListener,
 
 	}
 
-	private class CustomProgressBar implements Runnable {
-		public void run() {
-			try {
-				String s = "                      ";
-				int i = 0;
-				while (true) {
-					i = (i + 1) % 12;
-					IJ.showStatus("Scaling image. " + s.substring(0, i) + "***"
-							+ s.substring(0, 12 - i));
-					Thread.sleep(100);
-				}
-			} catch (InterruptedException e) {
-			}
-		}
-	}
-
 	public static void installMacroFromJar(String name) {
 		String macro = null;
 		try {
@@ -5,9 +5,15 @@ package dataSets;
  * (c) IBMP-CNRS
  *
  */
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 
+import utilities.AssetStore;
+import utilities.FigureFile;
+
 public class DataSource implements Serializable{
 
 	private static final long serialVersionUID = 1L;
@@ -25,6 +31,9 @@ public class DataSource implements Serializable{
 	private String 		notes = "";
 	public final String defaultNote = "<my image notes>";
 
+	// series of a file holding several images (read by Bio-Formats), 0 for the first one
+	private int 		series;
+
 	// position of the selected image in a multi channel or stack like image
 	private int 		selectedChannel;
 	private int 		selectedSlice;
@@ -46,6 +55,9 @@ public class DataSource implements Serializable{
 
 	private String		macroString = "";
 
+	// interpolation type used to transfer the region to the panel, @see utilities.MyImageMath.getInterpolationTypes()
+	private String		interpolation = "";
+
 	public DataSource() {
 		this.sourceX = null;
 		this.sourceY = null;
@@ -61,6 +73,10 @@ public class DataSource implements Serializable{
 	public double getUpperDisplayRange() {
 		return upperDisplRange;
 	}
+	/**@return index of the image in a file holding several images, @see DataSourceLoader#readSeries(String) */
+	public int getSeries() {
+		return series;
+	}
 	/**@return selected channel of the image serving as source for the panel this dataSource belongs to */
 	public int getChannel() {
 		return selectedChannel;
@@ -92,6 +108,11 @@ public class DataSource implements Serializable{
 	public String getFileName() {
 		return fileName;
 	}
+	/**@return path of the image serving as source, resolved through the asset store if the figure folder only holds a reference to it
+	 * @see utilities.AssetStore */
+	public String getFilePath() {
+		return AssetStore.resolve(fileDirectory+fileName);
+	}
 	/**@return x coordinates of the rectangle image region that was selected to fill the panel the dataSource object belongs to with */
 	public double[] getSourceX() {
 		return sourceX;
@@ -124,6 +145,15 @@ public class DataSource implements Serializable{
 	public String getMacro() {
 		return macroString;
 	}
+	/**@return interpolation type the region was scaled with; quintic B-spline for figures stored without it */
+	public String getInterpolation() {
+		return interpolation == null || interpolation.equals("") ? "quintic B-spline" : interpolation;
+	}
+	/**@return true if the region can be extracted again from the image file, e.g. after the panel was resized */
+	public boolean canReExtract() {
+		return sourceX != null && sourceY != null && fileName != null && !fileName.equals("")
+				&& (externalSource == null || externalSource.equals(""));
+	}
 
 
 	/**@param sourceX x coordinates of the ROI tool rectangle used to crop the selected image region
@@ -132,6 +162,27 @@ public class DataSource implements Serializable{
 		this.sourceX = sourceX;
 		this.sourceY = sourceY;
 	}
+	/**adapts the selected region to a new panel size: the region keeps its center, angle and pixel size,
+	 * so the image content is shown at the same scale and more or less of it fits into the panel
+	 * @param oldW panel width the region was selected for
+	 * @param oldH panel height the region was selected for
+	 * @param newW new panel width
+	 * @param newH new panel height */
+	public void resizeRegion(int oldW, int oldH, int newW, int newH) {
+		if(sourceX == null || sourceY == null || oldW <= 0 || oldH <= 0)
+			return;
+		double centerX = (sourceX[0]+sourceX[2])/2;
+		double centerY = (sourceY[0]+sourceY[2])/2;
+		// image distance of one panel pixel along the upper (0 -> 3) and the left (0 -> 1) edge
+		double ux = (sourceX[3]-sourceX[0])/oldW;
+		double uy = (sourceY[3]-sourceY[0])/oldW;
+		double vx = (sourceX[1]-sourceX[0])/oldH;
+		double vy = (sourceY[1]-sourceY[0])/oldH;
+		double w = newW/2.0;
+		double h = newH/2.0;
+		sourceX = new double[] {centerX-w*ux-h*vx, centerX-w*ux+h*vx, centerX+w*ux+h*vx, centerX+w*ux-h*vx};
+		sourceY = new double[] {centerY-w*uy-h*vy, centerY-w*uy+h*vy, centerY+w*uy+h*vy, centerY+w*uy-h*vy};
+	}
 	/**@param filePath path of the image chosen to fill the panel this data source belongs to with */
 	public void setFileDirectory(String filePath) {
 		if(!filePath.endsWith(File.separator))
@@ -158,6 +209,14 @@ public class DataSource implements Serializable{
 	public void setMacro(String macro) {
 		macroString = macro;
 	}
+	/**@param interpolation one of utilities.MyImageMath.getInterpolationTypes() */
+	public void setInterpolation(String interpolation) {
+		this.interpolation = interpolation;
+	}
+	/**@param series index of the image in a file holding several images */
+	public void setSeries(int series) {
+		this.series = series;
+	}
 	/**@see ij.ImagePlus.setSlice(int currentSlice)*/
 	public void setSlice(int currentSlice) {
 		selectedSlice = currentSlice;
@@ -202,6 +261,8 @@ public class DataSource implements Serializable{
 			s += "Image Datasource: "+fileName + "\n";
 			s += "External Datasource: "+(externalSource==""?"none":externalSource) + "\n";
 			s += "Original folder: "+fileDirectory + "\n";
+			if(series > 0)
+				s += "Series: "+series + "\n";
 			s += "Display range: \t["+lowerDisplRange+"-"+upperDisplRange + "]\n";
 			s += "Current [Slice,Frame,Channel]: \t["+selectedSlice+","+selectedFrame+","+selectedChannel+"]\n";
 			s += "Active Channels: \t["+actChs+"]\n";
@@ -226,6 +287,7 @@ public class DataSource implements Serializable{
 
 		newDS.notes 		= this.notes;
 
+		newDS.series		  = this.series;
 		newDS.selectedChannel = this.selectedChannel;
 		newDS.selectedSlice	  = this.selectedSlice;
 		newDS.selectedFrame	  = this.selectedFrame;
@@ -235,10 +297,109 @@ public class DataSource implements Serializable{
 
 		newDS.pixelWidth	= this.pixelWidth;
 		newDS.calbirationUnit			= this.calbirationUnit;
+		newDS.interpolation	= this.interpolation;
 
 		return newDS;
 	}
 
+	/**takes over what describes the pixels of the panel from a data source prepared for new pixels: image,
+	 * series, region, plane, channels, display range, calibration, pre-processing and interpolation.
+	 * notes, label, scale bar and external source are kept */
+	public void setExtraction(DataSource d) {
+		fileDirectory	= d.fileDirectory;
+		fileName		= d.fileName;
+		series			= d.series;
+		sourceX			= d.sourceX;
+		sourceY			= d.sourceY;
+		selectedChannel	= d.selectedChannel;
+		selectedSlice	= d.selectedSlice;
+		selectedFrame	= d.selectedFrame;
+		activeChannels	= d.activeChannels;
+		actChs			= d.actChs;
+		pixelWidth		= d.pixelWidth;
+		calbirationUnit	= d.calbirationUnit;
+		lowerDisplRange	= d.lowerDisplRange;
+		upperDisplRange	= d.upperDisplRange;
+		macroString		= d.macroString;
+		interpolation	= d.interpolation;
+	}
+
+	/**writes all values in the figure file format, @see utilities.FigureFile */
+	public void write(DataOutput out) throws IOException {
+		FigureFile.writeString(out, fileDirectory);
+		FigureFile.writeString(out, fileName);
+		FigureFile.writeString(out, externalSource);
+		writeDoubles(out, sourceX);
+		writeDoubles(out, sourceY);
+		FigureFile.writeString(out, notes);
+		out.writeInt(selectedChannel);
+		out.writeInt(selectedSlice);
+		out.writeInt(selectedFrame);
+		out.writeInt(activeChannels == null ? -1 : activeChannels.length);
+		if(activeChannels != null)
+			for(boolean b: activeChannels)
+				out.writeBoolean(b);
+		FigureFile.writeString(out, actChs);
+		out.writeDouble(pixelWidth);
+		FigureFile.writeString(out, calbirationUnit);
+		FigureFile.writeString(out, label);
+		FigureFile.writeString(out, scalebarInfo);
+		out.writeDouble(lowerDisplRange);
+		out.writeDouble(upperDisplRange);
+		FigureFile.writeString(out, macroString);
+		FigureFile.writeString(out, interpolation);
+		out.writeInt(series);
+	}
+	/**@param version version of the figure file format
+	 * @return data source with the values written by write() */
+	public static DataSource read(DataInput in, int version) throws IOException {
+		DataSource d 		= new DataSource();
+		d.fileDirectory 	= FigureFile.readString(in);
+		d.fileName 			= FigureFile.readString(in);
+		d.externalSource 	= FigureFile.readString(in);
+		d.sourceX 			= readDoubles(in);
+		d.sourceY 			= readDoubles(in);
+		d.notes 			= FigureFile.readString(in);
+		d.selectedChannel 	= in.readInt();
+		d.selectedSlice 	= in.readInt();
+		d.selectedFrame 	= in.readInt();
+		int nrOfChannels 	= in.readInt();
+		if(nrOfChannels >= 0) {
+			d.activeChannels = new boolean[nrOfChannels];
+			for(int i=0; i<nrOfChannels; i++)
+				d.activeChannels[i] = in.readBoolean();
+		}
+		d.actChs 			= FigureFile.readString(in);
+		d.pixelWidth 		= in.readDouble();
+		d.calbirationUnit 	= FigureFile.readString(in);
+		d.label 			= FigureFile.readString(in);
+		d.scalebarInfo 		= FigureFile.readString(in);
+		d.lowerDisplRange 	= in.readDouble();
+		d.upperDisplRange 	= in.readDouble();
+		d.macroString 		= FigureFile.readString(in);
+		d.interpolation 	= FigureFile.readString(in);
+		if(version >= 3)
+			d.series 		= in.readInt();
+		return d;
+	}
+
+	private static void writeDoubles(DataOutput out, double[] values) throws IOException {
+		out.writeInt(values == null ? -1 : values.length);
+		if(values != null)
+			for(double v: values)
+				out.writeDouble(v);
+	}
+
+	private static double[] readDoubles(DataInput in) throws IOException {
+		int length = in.readInt();
+		if(length < 0)
+			return null;
+		double[] values = new double[length];
+		for(int i=0; i<length; i++)
+			values[i] = in.readDouble();
+		return values;
+	}
+
 	public void setExternalSource(String source) {
 		this.externalSource = source;
 	}
@@ -0,0 +1,476 @@
+package dataSets;
+/*
+ * re-opens the image a data source points to, without displaying it, and brings it into the
+ * state it had when its region was transferred to the panel: position in the stack, recorded
+ * pre-processing macro, active channels and display range.
+ * may be used from any thread; the macro is run on the image by means of the temporary
+ * current image of the calling thread. the macro interpreter and most ImageJ commands expect
+ * a single caller, so images with a macro are prepared by one thread at a time, the others wait.
+ *
+ * files holding several images are read by Bio-Formats: their series and resolution levels are listed from
+ * the metadata only, and only the series of the data source is opened, as a virtual stack unless it has a
+ * pre-processing macro.
+ * images are opened through the ImageCache, so that recently used or prefetched images are not read again.
+ * of virtual stacks only the plane shown is read; it is cached as a part of the image, and so are the regions
+ * read partially.
+ * these files can be read partially when a panel is refilled: only the bounding box of
+ * the region, only the plane shown and only the pyramid resolution level that is closest to, but not
+ * coarser than, the size of the panel (switched off by setting figurej.partialReads to false).
+ */
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.WindowManager;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import loci.common.Region;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.ImageReader;
+import loci.plugins.BF;
+import loci.plugins.in.ImporterOptions;
+
+public class DataSourceLoader {
+
+	// pixels read around the region for the interpolation, as many as utilities.MyImageMath takes into account
+	private static final int margin = 8;
+
+	// files opened with Bio-Formats
+	private static final String[] bioFormatsExtensions = { ".czi", ".zvi", ".lif", ".nd2", ".svs", ".ndpi", ".scn", ".vsi" };
+
+	/** name of the image property telling which part of the file a partially read image holds, a plane or a region */
+	public static final String regionProperty = "FigureJ region";
+
+	/** name of the image property telling which series of a Bio-Formats file an image is */
+	public static final String seriesProperty = "FigureJ series";
+
+	// pre-processing macros are replayed one at a time, @see #prepare
+	private static final Object macroLock = new Object();
+
+	/**
+	 * @param data data source of a panel
+	 * @return the prepared image; null if it could not be opened
+	 */
+	public static ImagePlus open(DataSource data) {
+		String path = data.getFilePath();
+		String macro = data.getMacro();
+		boolean virtual = macro == null || macro.trim().equals("");
+		int channel = Math.max(1, data.getChannel());
+		int slice = Math.max(1, data.getSlice());
+		int frame = Math.max(1, data.getFrame());
+		ImagePlus imp = virtual ? ImageCache.getInstance().getPart(path, data.getSeries(), planePart(slice, frame)) : null;
+		if (imp != null) {
+			imp.setPosition(channel, 1, 1);
+			return prepare(imp, data);
+		}
+		imp = openImage(path, data.getSeries(), virtual);
+		if (imp == null)
+			return null;
+		imp.setPosition(channel, slice, frame);
+		if (imp.getStack().isVirtual()) {
+			ImagePlus plane = keepPlane(imp, path, data.getSeries());
+			if (plane != null) {
+				imp.flush();
+				imp = plane;
+				imp.setPosition(channel, 1, 1);
+			}
+		}
+		return prepare(imp, data);
+	}
+
+	/**
+	 * opens only the part of the image needed to fill a panel with the region of the data source,
+	 * if the file is read by Bio-Formats and the data source has no pre-processing macro (which could
+	 * depend on the whole image); the whole image otherwise.
+	 * @param xVals x coordinates of the corners of the region; changed to the coordinates in the returned image
+	 * @param yVals y coordinates of the corners of the region; changed as well
+	 * @param panelW width of the panel the region is scaled to
+	 * @param panelH height of the panel
+	 * @return the prepared image; null if it could not be opened
+	 */
+	public static ImagePlus open(DataSource data, double[] xVals, double[] yVals, int panelW, int panelH) {
+		String path = data.getFilePath();
+		String macro = data.getMacro();
+		if (Prefs.get("figurej.partialReads", true) && isBioFormatsFile(path)
+				&& (macro == null || macro.trim().equals(""))) {
+			// the whole plane, kept when the image was shown in the ROI tool or refilled before
+			ImagePlus plane = ImageCache.getInstance().getPart(path, data.getSeries(),
+					planePart(Math.max(1, data.getSlice()), Math.max(1, data.getFrame())));
+			if (plane != null) {
+				plane.setPosition(Math.max(1, data.getChannel()), 1, 1);
+				return prepare(plane, data);
+			}
+			try {
+				ImagePlus imp = openRegion(path, data, xVals, yVals, panelW, panelH);
+				if (imp != null)
+					return prepare(imp, data);
+			} catch (FormatException e) {
+				IJ.log("FigureJ: could not read a part of " + path + ", reading all of it (" + e.getMessage() + ")");
+			} catch (IOException e) {
+				IJ.log("FigureJ: could not read a part of " + path + ", reading all of it (" + e.getMessage() + ")");
+			}
+		}
+		return open(data);
+	}
+
+	/**
+	 * runs the macro of the data source on the image and sets the channels and display range shown.
+	 * concurrent refills wait for each other's macro: not to be called on the event dispatch thread
+	 */
+	private static ImagePlus prepare(ImagePlus imp, DataSource data) {
+		String macro = data.getMacro();
+		if (macro != null && !macro.trim().equals("")) {
+			synchronized (macroLock) {
+				WindowManager.setTempCurrentImage(imp);
+				try {
+					IJ.runMacro(macro);
+				}
+				finally {
+					WindowManager.setTempCurrentImage(null);
+				}
+			}
+		}
+
+		if (imp.isComposite()) {
+			CompositeImage ci = (CompositeImage) imp;
+			ci.setMode(CompositeImage.COMPOSITE);
+			String actChs = data.getActChs();
+			boolean[] active = ci.getActiveChannels();
+			for (int c = 0; c < active.length; c++)
+				active[c] = actChs == null || actChs.equals("") || (c < actChs.length() && actChs.charAt(c) == '1');
+		}
+		if (data.getUpperDisplayRange() > data.getLowerDisplayRange() && imp.getType() != ImagePlus.COLOR_RGB)
+			imp.setDisplayRange(data.getLowerDisplayRange(), data.getUpperDisplayRange());
+		return imp;
+	}
+
+	/** @return true for files opened with Bio-Formats: Zeiss files, multi-series containers and slide scans */
+	public static boolean isBioFormatsFile(String path) {
+		String name = path.toLowerCase();
+		for (String extension : bioFormatsExtensions)
+			if (name.endsWith(extension))
+				return true;
+		return false;
+	}
+
+	/** an image of a file read by Bio-Formats, with its resolution levels */
+	public static class Series {
+		/** number of the series in the file */
+		public final int index;
+		// number of the full resolution level when the levels of all series are counted as series
+		final int first;
+		/** width and height of every resolution level, full resolution first */
+		public final int[] widths;
+		public final int[] heights;
+		public final int sizeC;
+		public final int sizeZ;
+		public final int sizeT;
+		public final int bytesPerPixel;
+
+		Series(int index, int first, int[] widths, int[] heights, int sizeC, int sizeZ, int sizeT, int bytesPerPixel) {
+			this.index = index;
+			this.first = first;
+			this.widths = widths;
+			this.heights = heights;
+			this.sizeC = sizeC;
+			this.sizeZ = sizeZ;
+			this.sizeT = sizeT;
+			this.bytesPerPixel = bytesPerPixel;
+		}
+
+		/** @return e.g. "2: 4096 x 3072, 3 channels, 12 slices, 4 levels" */
+		public String toString() {
+			String s = (index + 1) + ": " + widths[0] + " x " + heights[0];
+			if (sizeC > 1)
+				s += ", " + sizeC + " channels";
+			if (sizeZ > 1)
+				s += ", " + sizeZ + " slices";
+			if (sizeT > 1)
+				s += ", " + sizeT + " frames";
+			if (widths.length > 1)
+				s += ", " + widths.length + " levels";
+			return s;
+		}
+	}
+
+	/** the series of a file, and the state of the file when they were read */
+	private static class SeriesEntry {
+		final Series[] series;
+		final long modified;
+		final long length;
+
+		SeriesEntry(Series[] series, long modified, long length) {
+			this.series = series;
+			this.modified = modified;
+			this.length = length;
+		}
+
+		boolean isCurrent(File file) {
+			return file.lastModified() == modified && file.length() == length;
+		}
+	}
+
+	// series of the files read recently, by path: every region read would initialize a reader for them otherwise
+	private static final int seriesEntries = 32;
+	private static final Map<String, SeriesEntry> seriesByFile = new LinkedHashMap<String, SeriesEntry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, SeriesEntry> eldest) {
+			return size() > seriesEntries;
+		}
+	};
+
+	/**
+	 * @return the series of a file read by Bio-Formats, from its metadata only (no pixels are read); the metadata
+	 * is read once as long as the file does not change. the series returned must not be changed
+	 */
+	public static Series[] readSeries(String path) throws FormatException, IOException {
+		File file = new File(path);
+		String key = file.getAbsolutePath();
+		synchronized (seriesByFile) {
+			SeriesEntry e = seriesByFile.get(key);
+			if (e != null && e.isCurrent(file))
+				return e.series;
+		}
+		// modification time and size before reading: a file changed meanwhile is read again next time
+		long modified = file.lastModified();
+		long length = file.length();
+		Series[] series = readSeriesFromFile(path);
+		synchronized (seriesByFile) {
+			seriesByFile.put(key, new SeriesEntry(series, modified, length));
+		}
+		return series;
+	}
+
+	private static Series[] readSeriesFromFile(String path) throws FormatException, IOException {
+		ImageReader reader = new ImageReader();
+		try {
+			reader.setFlattenedResolutions(false);
+			reader.setId(path);
+			Series[] series = new Series[reader.getSeriesCount()];
+			// with flattened resolutions (the importer's view), the levels of a series follow each other
+			int first = 0;
+			for (int s = 0; s < series.length; s++) {
+				reader.setSeries(s);
+				int[] widths = new int[reader.getResolutionCount()];
+				int[] heights = new int[widths.length];
+				for (int r = 0; r < widths.length; r++) {
+					reader.setResolution(r);
+					widths[r] = reader.getSizeX();
+					heights[r] = reader.getSizeY();
+				}
+				reader.setResolution(0);
+				series[s] = new Series(s, first, widths, heights, reader.getSizeC(), reader.getSizeZ(), reader.getSizeT(),
+						FormatTools.getBytesPerPixel(reader.getPixelType()));
+				first += widths.length;
+			}
+			return series;
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * opens one series of a file read by Bio-Formats, at full resolution, e.g. to select a region in it
+	 * @param virtual true to read the planes only when they are shown
+	 * @return the image, null if it could not be opened
+	 */
+	public static ImagePlus openSeries(String path, int series, boolean virtual) {
+		try {
+			Series[] all = readSeries(path);
+			if (series < 0 || series >= all.length)
+				throw new FormatException(path + " has no series " + (series + 1));
+			ImporterOptions options = createOptions(path, all[series].first);
+			options.setVirtual(virtual);
+			ImagePlus[] images = BF.openImagePlus(options);
+			if (images == null || images.length == 0)
+				return null;
+			// the series share the file: their extracted pixels must not be mixed up
+			images[0].setProperty(seriesProperty, Integer.valueOf(series));
+			return images[0];
+		} catch (FormatException e) {
+			IJ.log("Bioformats had problems reading " + path + " (" + e.getMessage() + ")");
+		} catch (IOException e) {
+			IJ.log("Bioformats had problems reading " + path + " (" + e.getMessage() + ")");
+		}
+		return null;
+	}
+
+	/** @return name of the plane of an image in the ImageCache and in the region property, @see #keepPlane */
+	static String planePart(int slice, int frame) {
+		return "plane " + slice + "," + frame;
+	}
+
+	/**
+	 * caches the plane a virtual stack shows (all channels at its slice and frame), so that the panels filled from
+	 * it are refilled without reading the file again; nothing happens for other images or if it does not fit
+	 * into the cache. the planes of a displayed composite image are taken from the display, the others are read.
+	 * @param path file of the image
+	 * @param series series of a Bio-Formats file, 0 for other files
+	 * @return an image of the plane sharing the pixels of the stack, null if it was not cached
+	 */
+	public static ImagePlus keepPlane(ImagePlus imp, String path, int series) {
+		ImageCache cache = ImageCache.getInstance();
+		int channels = imp.getNChannels();
+		long size = (long) imp.getWidth() * imp.getHeight() * channels * ImageCache.bytesPerPixel(imp);
+		if (!imp.getStack().isVirtual() || imp.changes || !cache.isEnabled() || !cache.fits(size))
+			return null;
+		int slice = imp.getSlice();
+		int frame = imp.getFrame();
+		ImageStack stack = imp.getStack();
+		ImageStack planes = new ImageStack(imp.getWidth(), imp.getHeight());
+		for (int c = 1; c <= channels; c++) {
+			ImageProcessor ip = null;
+			if (imp.isComposite() && imp.getWindow() != null)
+				ip = ((CompositeImage) imp).getProcessor(c);
+			else if (!imp.isComposite() && c == imp.getChannel())
+				ip = imp.getProcessor();
+			if (ip == null)
+				ip = stack.getProcessor(imp.getStackIndex(c, slice, frame));
+			planes.addSlice(null, ip);
+		}
+		ImagePlus plane = new ImagePlus(imp.getTitle(), planes);
+		plane.setDimensions(channels, 1, 1);
+		if (imp.isComposite()) {
+			CompositeImage ci = new CompositeImage(plane, ((CompositeImage) imp).getMode());
+			ci.setLuts(((CompositeImage) imp).getLuts());
+			plane = ci;
+		}
+		else
+			plane.setDisplayRange(imp.getDisplayRangeMin(), imp.getDisplayRangeMax());
+		plane.setCalibration(imp.getCalibration());
+		plane.setFileInfo(imp.getOriginalFileInfo());
+		Object s = imp.getProperty(seriesProperty);
+		if (s != null)
+			plane.setProperty(seriesProperty, s);
+		plane.setProperty(regionProperty, planePart(slice, frame));
+		cache.putPart(path, series, planePart(slice, frame), plane);
+		return plane;
+	}
+
+	/**
+	 * @param series series of a Bio-Formats file, ignored for other files
+	 * @param virtual true to open a Bio-Formats file as a virtual stack if it is not cached; the image read is
+	 * not cached then, @see ImageCache#open(String, int, boolean)
+	 * @return a copy of the image cached for the file, the image read from the file otherwise; null if it could not be opened
+	 */
+	public static ImagePlus openImage(String path, int series, boolean virtual) {
+		return ImageCache.getInstance().open(path, series, virtual);
+	}
+
+	/** @return number of bytes the image of the file takes in memory, estimated from the metadata or the file size */
+	static long estimateSize(String path, int series) {
+		if (isBioFormatsFile(path)) {
+			try {
+				Series s = readSeries(path)[series];
+				return (long) s.widths[0] * s.heights[0] * s.sizeC * s.sizeZ * s.sizeT * s.bytesPerPixel;
+			} catch (Exception e) {
+				return Long.MAX_VALUE;
+			}
+		}
+		return new File(path).length();
+	}
+
+	/** opens Bio-Formats files (only the series given), everything else with ImageJ; not cached */
+	static ImagePlus openFile(String path, int series, boolean virtual) {
+		if (isBioFormatsFile(path))
+			return openSeries(path, series, virtual);
+		return IJ.openImage(path);
+	}
+
+	/** @return options of the importer opening one series (in the importer's numbering) without any dialog */
+	private static ImporterOptions createOptions(String path, int series) throws IOException {
+		ImporterOptions options = new ImporterOptions();
+		options.setId(path);
+		options.setQuiet(true);
+		options.setWindowless(true);
+		options.clearSeries();
+		options.setSeriesOn(series, true);
+		return options;
+	}
+
+	/**
+	 * reads the bounding box of the region at the plane of the data source, from the coarsest resolution
+	 * level that still has at least the resolution of the panel
+	 * @return the image, null if the region lies outside of the image
+	 */
+	private static ImagePlus openRegion(String path, DataSource data, double[] xVals, double[] yVals, int panelW, int panelH)
+			throws FormatException, IOException {
+		Series[] all = readSeries(path);
+		if (data.getSeries() < 0 || data.getSeries() >= all.length)
+			throw new FormatException(path + " has no series " + (data.getSeries() + 1));
+		Series series = all[data.getSeries()];
+		int[] widths = series.widths;
+		int[] heights = series.heights;
+
+		// source pixels per panel pixel; the corners are ordered around the (tilted) rectangle
+		double regionW = Math.hypot(xVals[3] - xVals[0], yVals[3] - yVals[0]);
+		double regionH = Math.hypot(xVals[1] - xVals[0], yVals[1] - yVals[0]);
+		double reduction = Math.min(regionW / panelW, regionH / panelH);
+		int level = 0;
+		for (int r = 1; r < widths.length; r++)
+			if ((double) widths[0] / widths[r] <= reduction)
+				level = r;
+		double scaleX = (double) widths[level] / widths[0];
+		double scaleY = (double) heights[level] / heights[0];
+
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		for (int i = 0; i < 4; i++) {
+			minX = Math.min(minX, xVals[i] * scaleX);
+			maxX = Math.max(maxX, xVals[i] * scaleX);
+			minY = Math.min(minY, yVals[i] * scaleY);
+			maxY = Math.max(maxY, yVals[i] * scaleY);
+		}
+		int x0 = Math.max(0, (int) Math.floor(minX) - margin);
+		int y0 = Math.max(0, (int) Math.floor(minY) - margin);
+		int x1 = Math.min(widths[level], (int) Math.ceil(maxX) + margin);
+		int y1 = Math.min(heights[level], (int) Math.ceil(maxY) + margin);
+		if (x1 <= x0 || y1 <= y0)
+			return null;
+
+		int slice = Math.max(1, data.getSlice());
+		int frame = Math.max(1, data.getFrame());
+		// extracted pixels are cached by file and part: they must not be mixed up with those of the whole image
+		String part = "level " + level + ", " + x0 + "," + y0 + " " + (x1 - x0) + "x" + (y1 - y0) + ", "
+				+ planePart(slice, frame);
+		ImagePlus imp = ImageCache.getInstance().getPart(path, series.index, part);
+		if (imp == null) {
+			imp = readRegion(path, series.first + level, x0, y0, x1 - x0, y1 - y0, slice, frame);
+			if (imp == null)
+				return null;
+			imp.setProperty(seriesProperty, Integer.valueOf(series.index));
+			imp.setProperty(regionProperty, part);
+			ImageCache.getInstance().putPart(path, series.index, part, imp);
+		}
+		imp.setPosition(Math.max(1, data.getChannel()), 1, 1);
+
+		for (int i = 0; i < 4; i++) {
+			xVals[i] = xVals[i] * scaleX - x0;
+			yVals[i] = yVals[i] * scaleY - y0;
+		}
+		return imp;
+	}
+
+	/** @return the region of a plane (all channels) of the series s in the importer's numbering; null if none was read */
+	private static ImagePlus readRegion(String path, int s, int x, int y, int w, int h, int slice, int frame)
+			throws FormatException, IOException {
+		ImporterOptions options = createOptions(path, s);
+		options.setCrop(true);
+		options.setCropRegion(s, new Region(x, y, w, h));
+		// all channels (for composites), only the slice and frame shown
+		options.setSpecifyRanges(true);
+		options.setZBegin(s, slice - 1);
+		options.setZEnd(s, slice - 1);
+		options.setTBegin(s, frame - 1);
+		options.setTEnd(s, frame - 1);
+		ImagePlus[] images = BF.openImagePlus(options);
+		return images == null || images.length == 0 ? null : images[0];
+	}
+}
@@ -0,0 +1,268 @@
+package dataSets;
+/*
+ * least recently used cache of opened source images, so that images of panels the user worked on
+ * recently (or that were prefetched, @see SourcePrefetcher) are not read and decoded again. the size
+ * of the cache is limited by the number of bytes of all stored images (preference figurej.sourceCacheMB,
+ * 512 MB or a quarter of the memory by default; 0 switches the cache off). images are cached by file,
+ * series and modification time of the file; callers always get a copy, because they may process or close it.
+ * an image being read is read only once: callers asking for it at the same time wait for it. callers asking
+ * for a virtual stack do not wait for others; they open the file themselves and cache the image only if it was
+ * read completely (files not read by Bio-Formats). the planes and regions read of a virtual stack or partially
+ * are cached as parts of the image, @see DataSourceLoader.
+ */
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+public class ImageCache {
+
+	private static ImageCache instance;
+
+	private final long byteBudget;
+	private long bytes = 0;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	// images being read, by key
+	private final Map<String, FutureTask<ImagePlus>> reading = new HashMap<String, FutureTask<ImagePlus>>();
+
+	/** a cached image and the state of its file when it was read */
+	private static class Entry {
+		final ImagePlus imp;
+		final long modified;
+		final long length;
+		final long size;
+
+		Entry(ImagePlus imp, File file) {
+			this.imp = imp;
+			this.modified = file.lastModified();
+			this.length = file.length();
+			this.size = sizeOf(imp);
+		}
+
+		boolean isCurrent(File file) {
+			return file.lastModified() == modified && file.length() == length;
+		}
+	}
+
+	/** @return the cache shared by all figures */
+	public static synchronized ImageCache getInstance() {
+		if (instance == null) {
+			long defaultMB = Math.min(512, Runtime.getRuntime().maxMemory() / 4 / 1024 / 1024);
+			instance = new ImageCache((long) Prefs.get("figurej.sourceCacheMB", defaultMB) * 1024 * 1024);
+		}
+		return instance;
+	}
+
+	/** @param byteBudget maximum number of bytes of all cached images */
+	public ImageCache(long byteBudget) {
+		this.byteBudget = byteBudget;
+	}
+
+	/** @return true if images are cached at all */
+	public boolean isEnabled() {
+		return byteBudget > 0;
+	}
+
+	/** @return true if an image of this estimated size could be cached */
+	public boolean fits(long size) {
+		return size <= byteBudget;
+	}
+
+	/**
+	 * @param path image file
+	 * @param series series of a file read by Bio-Formats, 0 for other files
+	 * @param virtual true to open a Bio-Formats file as a virtual stack if it is not cached; such callers
+	 * (e.g. on the event dispatch thread) neither read the whole image into the cache nor wait for it being read
+	 * @return a copy of the cached image, or the image read from the file; null if it could not be opened
+	 */
+	public ImagePlus open(String path, int series, boolean virtual) {
+		File file = new File(path);
+		String key = key(file, series);
+		Entry e;
+		FutureTask<ImagePlus> task = null;
+		boolean mine = false;
+		synchronized (this) {
+			e = entries.get(key);
+			if (e != null && !e.isCurrent(file)) {
+				remove(key);
+				e = null;
+			}
+			if (e == null && !virtual)
+				task = reading.get(key);
+			if (e == null && task == null && !virtual && isEnabled()) {
+				task = newTask(path, series, file);
+				reading.put(key, task);
+				mine = true;
+			}
+		}
+		if (e != null)
+			return copy(e.imp);
+		if (task == null) {
+			ImagePlus imp = DataSourceLoader.openFile(path, series, virtual);
+			if (!virtual || imp == null || imp.getStack().isVirtual() || !isEnabled() || !fits(sizeOf(imp)))
+				return imp;
+			put(key, new Entry(imp, file));
+			return copy(imp);
+		}
+		if (mine)
+			run(key, task);
+		ImagePlus cached = null;
+		try {
+			cached = task.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException ex) {
+			IJ.log("FigureJ: could not read " + path + " (" + ex.getCause() + ")");
+		}
+		// too large for the cache: read as the caller wants it
+		return cached != null ? copy(cached) : DataSourceLoader.openFile(path, series, false);
+	}
+
+	/**
+	 * @param part names the part of the image, e.g. a plane or a region, @see DataSourceLoader
+	 * @return a copy of the part of the image cached for the file and series; null if it is not cached
+	 */
+	public ImagePlus getPart(String path, int series, String part) {
+		File file = new File(path);
+		String key = key(file, series) + "|" + part;
+		Entry e;
+		synchronized (this) {
+			e = entries.get(key);
+			if (e != null && !e.isCurrent(file)) {
+				remove(key);
+				e = null;
+			}
+		}
+		return e == null ? null : copy(e.imp);
+	}
+
+	/** caches a copy of a part of the image read from the file, if it fits; virtual stacks are not cached */
+	public void putPart(String path, int series, String part, ImagePlus imp) {
+		if (!isEnabled() || imp.getStack().isVirtual() || !fits(sizeOf(imp)))
+			return;
+		File file = new File(path);
+		put(key(file, series) + "|" + part, new Entry(copy(imp), file));
+	}
+
+	/**
+	 * reads the file into the cache, e.g. in the background; nothing happens if it is cached already
+	 * or would not fit into the free part of the cache (prefetched images do not evict others)
+	 */
+	public void prefetch(String path, int series) {
+		File file = new File(path);
+		String key = key(file, series);
+		FutureTask<ImagePlus> task;
+		synchronized (this) {
+			Entry e = entries.get(key);
+			if (!isEnabled() || e != null && e.isCurrent(file) || reading.containsKey(key))
+				return;
+		}
+		long size = DataSourceLoader.estimateSize(path, series);
+		synchronized (this) {
+			if (bytes + size > byteBudget || reading.containsKey(key))
+				return;
+			task = newTask(path, series, file);
+			reading.put(key, task);
+		}
+		run(key, task);
+	}
+
+	private FutureTask<ImagePlus> newTask(final String path, final int series, final File file) {
+		return new FutureTask<ImagePlus>(new Callable<ImagePlus>() {
+			public ImagePlus call() {
+				return read(path, series, file);
+			}
+		});
+	}
+
+	/** reads the image on the calling thread; others asking for it meanwhile wait for the task */
+	private void run(String key, FutureTask<ImagePlus> task) {
+		try {
+			task.run();
+		}
+		finally {
+			synchronized (this) {
+				reading.remove(key);
+			}
+		}
+	}
+
+	/** @return the image read completely and cached; null if it is too large for the cache or could not be read */
+	private ImagePlus read(String path, int series, File file) {
+		if (!fits(DataSourceLoader.estimateSize(path, series)))
+			return null;
+		ImagePlus imp = DataSourceLoader.openFile(path, series, false);
+		if (imp == null || imp.getStack().isVirtual() || !fits(sizeOf(imp)))
+			return null;
+		put(key(file, series), new Entry(imp, file));
+		return imp;
+	}
+
+	private synchronized void put(String key, Entry entry) {
+		remove(key);
+		entries.put(key, entry);
+		bytes += entry.size;
+		Iterator<Entry> eldest = entries.values().iterator();
+		while (bytes > byteBudget && eldest.hasNext()) {
+			bytes -= eldest.next().size;
+			eldest.remove();
+		}
+	}
+
+	private synchronized void remove(String key) {
+		Entry old = entries.remove(key);
+		if (old != null)
+			bytes -= old.size;
+	}
+
+	/** forget all cached images */
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	/** @return number of bytes currently used */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	private static String key(File file, int series) {
+		return file.getAbsolutePath() + "#" + series;
+	}
+
+	/** @return number of bytes the pixels of the image take in memory */
+	static long sizeOf(ImagePlus imp) {
+		return (long) imp.getWidth() * imp.getHeight() * imp.getStackSize() * bytesPerPixel(imp);
+	}
+
+	/** @return 4 for RGB images (int pixels), 1, 2 or 4 for the others */
+	static int bytesPerPixel(ImagePlus imp) {
+		return imp.getBitDepth() == 24 ? 4 : Math.max(1, imp.getBitDepth() / 8);
+	}
+
+	/** @return a copy of a cached image with the same title, file information, series and part */
+	private static ImagePlus copy(ImagePlus cached) {
+		ImagePlus imp;
+		// panels refilled in the background may copy the same image at the same time
+		synchronized (cached) {
+			imp = cached.duplicate();
+		}
+		imp.setTitle(cached.getTitle());
+		imp.setFileInfo(cached.getOriginalFileInfo());
+		Object series = cached.getProperty(DataSourceLoader.seriesProperty);
+		if (series != null)
+			imp.setProperty(DataSourceLoader.seriesProperty, series);
+		Object part = cached.getProperty(DataSourceLoader.regionProperty);
+		if (part != null)
+			imp.setProperty(DataSourceLoader.regionProperty, part);
+		return imp;
+	}
+}
@@ -0,0 +1,72 @@
+package dataSets;
+/*
+ * reads the source images of a figure into the ImageCache in the background after the figure was opened,
+ * so that opening a panel's image in the ROI tool does not wait for the file. the images are read in the
+ * order of the panels by a few I/O threads (preference figurej.prefetchThreads, 2 by default), only as long
+ * as they fit into the free part of the cache. switched off by setting figurej.prefetch to false.
+ */
+import ij.Prefs;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+public class SourcePrefetcher {
+
+	private static ExecutorService pool;
+	// images of the last figure opened, waiting or being read
+	private static final List<Future<?>> pending = new CopyOnWriteArrayList<Future<?>>();
+
+	private static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			int nrOfThreads = Math.max(1, (int) Prefs.get("figurej.prefetchThreads", 2));
+			pool = Executors.newFixedThreadPool(nrOfThreads, new ThreadFactory() {
+				private int count = 0;
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "FigureJ prefetch " + (count++));
+					t.setDaemon(true);	// never keep ImageJ from quitting
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
+		}
+		return pool;
+	}
+
+	/** starts reading the images of the data sources; the images of a figure opened before are not read anymore */
+	public static void prefetch(List<DataSource> dataSources) {
+		cancelAll();
+		final ImageCache cache = ImageCache.getInstance();
+		if (!Prefs.get("figurej.prefetch", true) || !cache.isEnabled())
+			return;
+
+		// every image once, in the order of the panels
+		Map<String, Integer> images = new LinkedHashMap<String, Integer>();
+		for (DataSource d : dataSources)
+			if (d.getFileName() != null && !d.getFileName().equals(""))
+				images.put(d.getFilePath() + "#" + d.getSeries(), d.getSeries());
+
+		for (Map.Entry<String, Integer> image : images.entrySet()) {
+			String key = image.getKey();
+			final String path = key.substring(0, key.lastIndexOf('#'));
+			final int series = image.getValue();
+			pending.add(getPool().submit(new Runnable() {
+				public void run() {
+					cache.prefetch(path, series);
+				}
+			}));
+		}
+	}
+
+	/** the images not read yet are not read anymore, e.g. when the figure is closed */
+	public static void cancelAll() {
+		for (Future<?> f : pending)
+			f.cancel(false);
+		pending.clear();
+	}
+}
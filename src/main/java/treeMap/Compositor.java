@@ -0,0 +1,240 @@
+package treeMap;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import utilities.WorkerPool;
+
+/**
+ * collects the pixels of the panels on the pixel array of the result image.
+ * every panel rectangle is clipped once against the region that has to be redrawn,
+ * afterwards whole rows are copied (images) or filled (separators, empty panels).
+ * the changed pixels are passed to the image processor once per frame by commit().
+ *
+ * panels never overlap, so on large figures the drawing is deferred to commit() and done
+ * in parallel: the clip region is cut into horizontal bands and every worker thread draws
+ * the parts of all panels falling into its band. small redraws are done directly.
+ */
+public class Compositor {
+
+	// regions smaller than this number of pixels are not worth being split among threads
+	private static final int minParallelArea = 1<<22;
+	// bands per thread, so that threads finishing early can take over some work
+	private static final int bandsPerThread = 4;
+
+	private final ImagePlus figure;
+	private final ImageProcessor ip;
+	private final int[] pixels;
+	private final int figWidth;
+	private final int figHeight;
+	private final Rectangle clip;
+	// figure row stored in the first row of the pixel array
+	private final int firstRow;
+
+	// rectangles to draw upon commit if drawing is done in parallel, null if drawn directly
+	private List<Operation> operations;
+
+	/** a panel rectangle that is either copied from a pixel store or filled with a color */
+	private static class Operation {
+		final PixelStore src;
+		final int srcX, srcY;
+		final int color;
+		final int x, y, w, h;
+
+		Operation(PixelStore src, int srcX, int srcY, int color, int x, int y, int w, int h) {
+			this.src = src;
+			this.srcX = srcX;
+			this.srcY = srcY;
+			this.color = color;
+			this.x = x;
+			this.y = y;
+			this.w = w;
+			this.h = h;
+		}
+	}
+
+	/**
+	 * @param figure RGB result image to draw on
+	 * @param clip region of the figure that has to be redrawn; null to redraw everything
+	 */
+	public Compositor(ImagePlus figure, Rectangle clip) {
+		this.figure = figure;
+		this.ip = figure.getProcessor();
+		this.pixels = (int[]) ip.getPixels();
+		this.figWidth = figure.getWidth();
+		this.figHeight = figure.getHeight();
+		Rectangle bounds = new Rectangle(0, 0, figWidth, figHeight);
+		this.clip = clip == null ? bounds : clip.intersection(bounds);
+		this.firstRow = 0;
+		if(WorkerPool.getThreadCount() > 1 && (long) this.clip.width*this.clip.height >= minParallelArea)
+			operations = new ArrayList<Operation>();
+	}
+
+	/**
+	 * draws a band of the figure without an image of the whole figure, e.g. for streaming exports.
+	 * panels are not changed by the drawing and do not share their pixels with the band.
+	 * @param band pixels of the rows [band.y, band.y+band.height), figWidth pixels per row
+	 * @param figWidth width of the figure
+	 * @param figHeight height of the figure
+	 * @param clip rows of the figure held by the band, the rectangle has to span the whole width
+	 */
+	public Compositor(int[] band, int figWidth, int figHeight, Rectangle clip) {
+		this.figure = null;
+		this.ip = null;
+		this.pixels = band;
+		this.figWidth = figWidth;
+		this.figHeight = figHeight;
+		this.clip = clip.intersection(new Rectangle(0, 0, figWidth, figHeight));
+		this.firstRow = clip.y;
+		if(WorkerPool.getThreadCount() > 1 && (long) this.clip.width*this.clip.height >= minParallelArea)
+			operations = new ArrayList<Operation>();
+	}
+
+	/** @return the image the panels are drawn on; null if a band is drawn for an export */
+	public ImagePlus getFigure() {
+		return figure;
+	}
+
+	/** @return region of the figure that is redrawn; panels outside of it can be skipped */
+	public Rectangle getClip() {
+		return clip;
+	}
+
+	/** @return true if the whole figure is redrawn */
+	public boolean coversFigure() {
+		return figure != null && clip.x == 0 && clip.y == 0 && clip.width == figWidth && clip.height == figHeight;
+	}
+
+	/**
+	 * copies a rectangle of panel pixels row by row to the figure
+	 * @param src pixels of the panel, the upper left pixel belongs to (x, y)
+	 * @param x left coordinate of the panel on the figure
+	 * @param y upper coordinate of the panel on the figure
+	 * @param w width of the panel
+	 * @param h height of the panel
+	 */
+	public void blit(PixelStore src, int x, int y, int w, int h) {
+		blit(src, 0, 0, x, y, w, h);
+	}
+
+	/**
+	 * copies the rectangle of panel pixels starting at (srcX, srcY) to the figure
+	 * @see #blit(PixelStore, int, int, int, int)
+	 */
+	public void blit(PixelStore src, int srcX, int srcY, int x, int y, int w, int h) {
+		if(operations != null)
+			operations.add(new Operation(src, srcX, srcY, 0, x, y, w, h));
+		else
+			copy(src, srcX, srcY, x, y, w, h, clip.y, clip.y+clip.height);
+	}
+
+	/** @return true if src already shares its pixels with the figure at (x, y), so nothing has to be copied */
+	public boolean isShared(PixelStore src, int x, int y) {
+		return figure != null && src.isViewOf(pixels, y*figWidth+x, figWidth);
+	}
+
+	/**
+	 * @return a store sharing the pixels of the rectangle with the figure, @see PixelStore.FIGURE;
+	 * null if the rectangle is not redrawn completely, so that it does not hold the panel's pixels
+	 */
+	public PixelStore share(int x, int y, int w, int h) {
+		if(figure == null || !clip.contains(x, y, w, h))
+			return null;
+		return PixelStore.view(pixels, y*figWidth+x, figWidth, w, h);
+	}
+
+	/** fills a rectangle of the figure with a single color (separators, panels without image) */
+	public void fill(int color, int x, int y, int w, int h) {
+		if(operations != null)
+			operations.add(new Operation(null, 0, 0, color, x, y, w, h));
+		else
+			fill(color, x, y, w, h, clip.y, clip.y+clip.height);
+	}
+
+	/** copies the rows [fromRow, toRow) of a rectangle clipped by the clip region */
+	private void copy(PixelStore src, int srcX, int srcY, int x, int y, int w, int h, int fromRow, int toRow) {
+		int x0 = Math.max(x, clip.x);
+		int y0 = Math.max(y, fromRow);
+		int x1 = Math.min(x+w, clip.x+clip.width);
+		int y1 = Math.min(y+h, toRow);
+		int length = x1 - x0;
+		if(length <= 0 || y1 <= y0)
+			return;
+
+		int srcStride = src.stride();
+		int srcIndex = src.offset() + (y0-y+srcY)*srcStride + x0-x+srcX;
+		int dstIndex = (y0-firstRow)*figWidth + x0;
+		int[] array = src.array();
+		if(array != null)
+			for(int row=y0; row<y1; row++) {
+				System.arraycopy(array, srcIndex, pixels, dstIndex, length);
+				srcIndex += srcStride;
+				dstIndex += figWidth;
+			}
+		else {
+			IntBuffer buffer = src.buffer();
+			for(int row=y0; row<y1; row++) {
+				buffer.position(srcIndex);
+				buffer.get(pixels, dstIndex, length);
+				srcIndex += srcStride;
+				dstIndex += figWidth;
+			}
+		}
+	}
+
+	/** fills the rows [fromRow, toRow) of a rectangle clipped by the clip region */
+	private void fill(int color, int x, int y, int w, int h, int fromRow, int toRow) {
+		int x0 = Math.max(x, clip.x);
+		int y0 = Math.max(y, fromRow);
+		int x1 = Math.min(x+w, clip.x+clip.width);
+		int y1 = Math.min(y+h, toRow);
+		if(x1 <= x0 || y1 <= y0)
+			return;
+
+		int dstIndex = (y0-firstRow)*figWidth;
+		for(int row=y0; row<y1; row++) {
+			Arrays.fill(pixels, dstIndex+x0, dstIndex+x1, color);
+			dstIndex += figWidth;
+		}
+	}
+
+	/** draws the deferred rectangles; every band of rows is handled by one thread */
+	private void drawInParallel() {
+		final List<Operation> ops = operations;
+		operations = null;
+		WorkerPool.run(clip.height, WorkerPool.getThreadCount()*bandsPerThread, new WorkerPool.Stripe() {
+			public void run(int from, int to) {
+				int fromRow = clip.y + from;
+				int toRow   = clip.y + to;
+				for(Operation op: ops) {
+					if(op.y >= toRow || op.y+op.h <= fromRow)
+						continue;
+					if(op.src != null)
+						copy(op.src, op.srcX, op.srcY, op.x, op.y, op.w, op.h, fromRow, toRow);
+					else
+						fill(op.color, op.x, op.y, op.w, op.h, fromRow, toRow);
+				}
+			}
+		});
+	}
+
+	/**
+	 * passes the drawn pixels to the figure (or the band)
+	 * @throws java.util.concurrent.CancellationException if the thread was interrupted while the bands were
+	 * drawn; the frame is abandoned then, the figure is not updated and has to be drawn again
+	 */
+	public void commit() {
+		if(operations != null)
+			drawInParallel();
+		if(figure == null)
+			return;
+		ip.setPixels(pixels);
+		figure.setProcessor(ip);
+	}
+}
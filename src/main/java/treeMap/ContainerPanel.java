@@ -3,6 +3,9 @@ package treeMap;
 import ij.IJ;
 import ij.gui.Overlay;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 
 
@@ -23,11 +26,23 @@ public class ContainerPanel extends Panel {
 	private boolean horizontallySplitable;
 	private static final String smallSidelengthWarning = "";//>>   side length fell below minimum! no splitting done.";
 	private final int minLeafSideLength = LeafPanel.minLeafSideLength;
+	// hit testing and snapping index; only built for the root panel, upon the first query
+	transient PanelIndex index;
 
 	public ContainerPanel(int xPos, int yPos, int w, int h){
 		super(xPos, yPos, w, h);
 	}
 
+	@Override
+	protected void writeFields(DataOutput out) throws IOException {
+		out.writeBoolean(horizontallySplitable);
+	}
+
+	@Override
+	protected void readFields(DataInput in, int version) throws IOException {
+		horizontallySplitable = in.readBoolean();
+	}
+
 	/**
 	 * @return always false because containers are invisible and therefore only their visible content
 	 * can be clicked */
@@ -36,6 +51,35 @@ public class ContainerPanel extends Panel {
 		return false;
 	}
 
+	/** the root panel answers with the help of its spatial index instead of visiting every panel */
+	@Override
+	public Panel getClicked(int x, int y, int tol) {
+		if(parentPanel != null)
+			return super.getClicked(x, y, tol);
+		return getRootIndex().getClicked(x, y, tol);
+	}
+
+	@Override
+	public int getClosestY(Panel p, int currentClosest) {
+		if(parentPanel != null)
+			return super.getClosestY(p, currentClosest);
+		return getRootIndex().getClosestY(p, currentClosest);
+	}
+
+	@Override
+	public int getClosestX(Panel p, int currentClosest) {
+		if(parentPanel != null)
+			return super.getClosestX(p, currentClosest);
+		return getRootIndex().getClosestX(p, currentClosest);
+	}
+
+	/** @return index of the tree; built if this root panel was just created or deserialized */
+	private PanelIndex getRootIndex() {
+		if(index == null)
+			index = new PanelIndex(this);
+		return index;
+	}
+
 	/**
 	 * @param horizontalSplit if true the panel is split horizontally; else vertically
 	 * @param child0 leaf panel (=image) to split
@@ -78,7 +122,7 @@ public class ContainerPanel extends Panel {
 
 			child0.panelHeight=(child0Height);					// shrink
 			separator 	= new SeparatorPanel(child0.xPos, child0Y1, child0.panelWidth, separatorWidth);
-			child1 		= new LeafPanel(	 child0.xPos, child1Y0, child0.panelWidth, child1Height);  // the new image is set below the "splitted" one
+			child1 		= new LeafPanel(	 child0.xPos, child1Y0, child0.panelWidth, child1Height, getPanelColor());  // the new image is set below the "splitted" one
 
 		}
 		else
@@ -97,9 +141,12 @@ public class ContainerPanel extends Panel {
 
 			child0.panelWidth = child0Width;
 			separator 	= new SeparatorPanel(child0X1, child0.yPos, separatorWidth, child0.panelHeight);
-			child1 		= new LeafPanel(	 child1X0, child0.yPos, child1Width,   child0.panelHeight);  // the new image is set below the "splitted" one
+			child1 		= new LeafPanel(	 child1X0, child0.yPos, child1Width,   child0.panelHeight, getPanelColor());  // the new image is set below the "splitted" one
 
 		}
+		invalidate(container.xPos, container.yPos, container.panelWidth, container.panelHeight);	// area of the leaf before splitting
+		child0.invalidate();
+
 		if(horizontalSplit == horizontallySplitable)	// if container's split direction = direction of current split: add a child
 		{
 			int index = children.indexOf(child0);
@@ -152,7 +199,7 @@ public class ContainerPanel extends Panel {
 
 			for(int i=0; i<nr-1; i++) {
 				SeparatorPanel sep = new SeparatorPanel(child0.getX(), separatorPos, child0.getW(), separatorWidth);
-				LeafPanel leaf = new LeafPanel(child0.getX(), separatorPos+separatorWidth, child0.getW(), newLeafSideLenght);
+				LeafPanel leaf = new LeafPanel(child0.getX(), separatorPos+separatorWidth, child0.getW(), newLeafSideLenght, getPanelColor());
 				childrenTemp.add(sep);
 				childrenTemp.add(leaf);
 				separatorPos = separatorPos+separatorWidth+newLeafSideLenght;
@@ -167,7 +214,7 @@ public class ContainerPanel extends Panel {
 			separatorPos = child0.getW() + child0.getX();
 			for (int i=0; i<nr-1; i++) {
 				SeparatorPanel sep = new SeparatorPanel(separatorPos, child0.getY(), separatorWidth, child0.getH());
-				LeafPanel leafi = new LeafPanel(separatorPos+separatorWidth, child0.getY(), newLeafSideLenght, child0.getH());
+				LeafPanel leafi = new LeafPanel(separatorPos+separatorWidth, child0.getY(), newLeafSideLenght, child0.getH(), getPanelColor());
 				childrenTemp.add(sep);
 				childrenTemp.add(leafi);
 				separatorPos = separatorPos+separatorWidth+newLeafSideLenght;
@@ -303,7 +350,7 @@ public class ContainerPanel extends Panel {
 			else
 				growingPanel.setW(growingPanel.getW()+removeLeaf.getW()+separatorWidth);
 		}
-		children.remove(removeLeaf);
+		this.removeChild(removeLeaf);
 
 		if(children.size()==1)				// only growing panel left
 		{
@@ -404,19 +451,36 @@ public class ContainerPanel extends Panel {
 	public void addChild(Panel child) {
 		child.setParent(this);
 		children.add(child);
+		childAdded(child);
 	}
 
 	protected void addChild(int i, Panel child) {
 		child.setParent(this);
 		children.add(i, child);
+		childAdded(child);
 	}
 
 	protected void removeChild(int i) {
-		children.remove(i);
+		childRemoved(children.remove(i));
 	}
 
 	protected void removeChild(Panel p) {
 		children.remove(p);
+		childRemoved(p);
+	}
+
+	/** keep the spatial index of the tree up to date */
+	private void childAdded(Panel child) {
+		PanelIndex index = getIndex();
+		if(index != null)
+			index.add(child);
+	}
+
+	/** children moved to another container (split) or back to the parent (remove) stay indexed */
+	private void childRemoved(Panel child) {
+		PanelIndex index = getIndex();
+		if(index != null && child.getParent() == this)
+			index.remove(child);
 	}
 
 	@Override
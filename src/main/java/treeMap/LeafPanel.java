@@ -2,8 +2,6 @@ package treeMap;
 
 import ij.IJ;
 import ij.ImagePlus;
-import ij.Prefs;
-import ij.WindowManager;
 import ij.gui.Line;
 import ij.gui.Overlay;
 import ij.gui.Roi;
@@ -15,8 +13,15 @@ import ij.process.ImageProcessor;
 
 import java.awt.Color;
 import java.awt.Font;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.List;
+import java.util.concurrent.Callable;
 
+import utilities.FigureFile;
 import utilities.LabelPosition;
 import dataSets.DataSource;
 
@@ -33,6 +38,7 @@ public class LeafPanel extends Panel{
 
 	private static final long serialVersionUID = 1L;
 	private DataSource imgData;
+	// background color of new figures; every figure keeps its own, @see Panel#getPanelColor()
 	private static int colorValue =  0x99aabb;
 	private int maxW;
 	private int maxH;
@@ -46,7 +52,13 @@ public class LeafPanel extends Panel{
 		this.hasImg = hasImg;
 	}
 
+	// pixels of the panel (maxW x maxH); the array only holds them while the panel is serialized
 	private int[] myPanelPixels;
+	private transient PixelStore pixels;
+	// resized since the pixels were extracted from the data source; shows the old pixels centered
+	private transient boolean stale = false;
+	// reads the saved pixels of a figure opened lazily; null once they are loaded
+	private transient Callable<int[]> pendingPixels;
 
 	// label stuff
 	private transient TextRoi label;
@@ -76,78 +88,125 @@ public class LeafPanel extends Panel{
 	private boolean hasScalebar		= false;
 	private boolean scalebarVisible		= false;
 
+	/** an empty panel in the default color of new figures */
 	public LeafPanel(int xPos, int yPos, int w, int h) {
+		this(xPos, yPos, w, h, colorValue);
+	}
+
+	/** @param color background color of the figure the panel is added to, @see Panel#getPanelColor() */
+	public LeafPanel(int xPos, int yPos, int w, int h, int color) {
+		this(xPos, yPos, w, h, false);
+		getNewArrayPixels(color);
+	}
+
+	/** @param allocate false for panels read from a file: readFields creates the pixels at their saved size */
+	LeafPanel(int xPos, int yPos, int w, int h, boolean allocate) {
 		super(xPos, yPos, w, h);
 		imgData =  new DataSource();
 		maxW = w;
 		maxH = h;
-		updatePixelArray();
+		if(allocate)
+			getNewArrayPixels(colorValue);
 
 		if(scaleBarHeight == 0)
 			scaleBarHeight = 5;
 	}
 
 	@Override
-	public void draw(ImagePlus resImg) {
-		if (hasLabel==true) moveLabel(resImg.getOverlay());
-		moveScalebar(resImg);
-
-		ImageProcessor imp = resImg.getProcessor();
-		int figHeight = resImg.getHeight();
-		int figWidth  = resImg.getWidth();
-		int[] pixels  = (int[]) imp.getPixels();
-		for(int imgY=yPos; 		imgY < Math.min(figHeight, yPos+panelHeight); imgY++)
-			for(int imgX=xPos; 	imgX < Math.min(figWidth,  xPos+panelWidth);  imgX++)
-			{
-				// if an image is scaled to a smaller size, its pixel array is not updated (cache ;)),
-				// only the sector drawn shrinks. pixels are only re-read if the image becomes larger
-				// (disabled atm because of heap space problem when dealing with large images)
-				pixels[imgY*figWidth + imgX] =
-						myPanelPixels[(imgY-yPos)*maxW + imgX-xPos];
+	public void draw(Compositor compositor) {
+		ImagePlus resImg = compositor.getFigure();
+		if (resImg != null) {
+			if (hasLabel==true) moveLabel(resImg.getOverlay());
+			moveScalebar(resImg);
+		}
+
+		// while the panel is resized (separator drags), the pixels are only drawn centered;
+		// they are re-arranged to the new size when the whole figure is drawn (drag released)
+		if (compositor.coversFigure())
+			updatePixelArray();
+
+		if (maxW != panelWidth || maxH != panelHeight) {
+			// the pixels of an empty panel are refilled with the panel color when it is resized
+			if (hasImg)
+				drawCentered(compositor);
+			else
+				compositor.fill(getPanelColor(), xPos, yPos, panelWidth, panelHeight);
+		}
+		// pixels shared with the figure are already in place
+		else if (!compositor.isShared(pixels, xPos, yPos)) {
+			compositor.blit(pixels, xPos, yPos, panelWidth, panelHeight);
+			if (PixelStore.getMode().equals(PixelStore.FIGURE)) {
+				PixelStore shared = compositor.share(xPos, yPos, panelWidth, panelHeight);
+				if (shared != null)
+					pixels = shared;
 			}
-		imp.setPixels(pixels);
-		resImg.setProcessor(imp);
-		updateMetadata();
+		}
 	}
 
-	private void updateMetadata() {
+	/** draws the pixels in the center of the panel, cropped if they are larger, and the background color around them */
+	private void drawCentered(Compositor compositor) {
+		int color = getPanelColor();
+		int offSetX = panelWidth/2 - maxW/2;
+		int offSetY = panelHeight/2 - maxH/2;
+		int x0 = Math.max(0, offSetX);
+		int x1 = Math.min(panelWidth, offSetX+maxW);
+		int y0 = Math.max(0, offSetY);
+		int y1 = Math.min(panelHeight, offSetY+maxH);
+		if (x1 <= x0 || y1 <= y0) {
+			compositor.fill(color, xPos, yPos, panelWidth, panelHeight);
+			return;
+		}
+		compositor.blit(pixels, x0-offSetX, y0-offSetY, xPos+x0, yPos+y0, x1-x0, y1-y0);
+		compositor.fill(color, xPos, yPos, panelWidth, y0);
+		compositor.fill(color, xPos, yPos+y1, panelWidth, panelHeight-y1);
+		compositor.fill(color, xPos, yPos+y0, x0, y1-y0);
+		compositor.fill(color, xPos+x1, yPos+y0, panelWidth-x1, y1-y0);
+	}
+
+	/** @return line of the panel in the "Info" property of the figure: position, size, calibration and image file,
+	 * separated by commas; @see windows.FigureImagePlus */
+	public String getMetadata() {
 		String cal = "1";
 		String unit = "pixel";
 		try {
 			cal = ""+imgData.getPixelWidth();
 			unit = ""+imgData.getUnit();
 		} catch (Exception e) {}
-		String panelRoi = ""+ xPos
+		return ""+ xPos
 				+","+yPos
 				+","+panelWidth
 				+","+panelHeight
 				+","+cal
 				+","+unit
-				//	+","+imgData.getType()  //TODO remove safely
 				+","+imgData.getFileDirectory()
 				+","+imgData.getFileName();
+	}
 
-		ImagePlus imp = WindowManager.getImage((int)Prefs.get("figure.id", 0));
-		if (imp!=null){
-			String metadata = (String) imp.getProperty("Info");
-			imp.setProperty("Info", metadata+ "\n" + panelRoi);
-		}
+	/** panels are invalidated before they change their geometry: pixels shared with the figure are
+	 * copied out of it, because the rectangle they lie in will be drawn over by other panels */
+	@Override
+	protected void invalidate() {
+		if (pixels != null && pixels.isView())
+			pixels = PixelStore.wrap(pixels.toArray(), pixels.getWidth(), pixels.getHeight());
+		super.invalidate();
 	}
 
+	/** brings the pixels to the size of the panel, if it was resized since */
 	protected void updatePixelArray() {
-		if(hasImg)
+		if(pixels == null)
+			getNewArrayPixels(getPanelColor());
+		else if(maxW != panelWidth || maxH != panelHeight) {
+			// saved pixels still being loaded are needed at their old size
+			loadPendingPixels();
 			expandPixelArray();
-
-		else getNewArrayPixels();
+		}
 	}
 
 	/** define the pixel values for each panel */
-	private void getNewArrayPixels() {
+	private void getNewArrayPixels(int color) {
 
-		myPanelPixels = new int[panelWidth*panelHeight];
-		for(int y = 0; y<panelHeight; y++)
-			for(int x = 0; x<panelWidth; x++)
-				myPanelPixels[y*panelWidth + x] = colorValue;
+		pixels = PixelStore.create(panelWidth, panelHeight);
+		pixels.fill(color);
 		maxW = getW();
 		maxH = getH();
 	}
@@ -155,31 +214,23 @@ public class LeafPanel extends Panel{
 	/** re-fill the panel with its original color*/
 	public void eraseImage() {
 		hasImg = false;
-		for(int y = 0; y<panelHeight; y++)
-			for(int x = 0; x<panelWidth; x++)
-				myPanelPixels[y*panelWidth + x] = colorValue;
+		pendingPixels = null;
+		invalidate();
+		pixels.fill(getPanelColor());
 	}
 
-	/** creates a new pixel array, transfers the old data to the center (former: upper left - commented out) and fills the rest with default color */
+	/** transfers the old data to the center (former: upper left) and fills the rest with default color;
+	 * the memory of the pixels is reused if it is large enough */
 	private void expandPixelArray()
 	{
-		int[] myTempPixels = new int[panelWidth*panelHeight];
-		int offSetY = panelHeight/2 - maxH/2;
-		int offSetX = panelWidth/2 - maxW/2;
-		for(int y = 0; y<panelHeight; y++)
-			for(int x = 0; x<panelWidth; x++)
-			{
-				if(x>= offSetX && x<offSetX+maxW && y >= offSetY && y < offSetY+maxH)
-					myTempPixels[y*panelWidth + x] = myPanelPixels[(y-offSetY)*maxW + (x-offSetX)];
-				else
-					myTempPixels[y*panelWidth + x] = colorValue;
-
-				//				if(maxW > x && maxH > y)
-				//					myTempPixels[y*panelWidth + x] = myPanelPixels[y*maxW + x];
-				//				else
-				//					myTempPixels[y*panelWidth + x] = colorValue;
-			}
-		myPanelPixels = myTempPixels;
+		if(hasImg) {
+			imgData.resizeRegion(maxW, maxH, panelWidth, panelHeight);
+			stale = true;
+		}
+		int color = getPanelColor();
+		pixels = pixels.recenter(panelWidth, panelHeight, color);
+		if(!hasImg)
+			pixels.fill(color);
 		maxW = getW();
 		maxH = getH();
 	}
@@ -187,31 +238,35 @@ public class LeafPanel extends Panel{
 	@Override
 	public void setPixels(ImagePlus image) {
 		hasImg = true;
+		pendingPixels = null;
 		if (image.getProcessor()==null) image.setProcessor(IJ.getImage().getProcessor());
 		System.out.println(image.
 				getProcessor() != null);  //TODO is null after opening a new image
 		image.setRoi(new Roi(getX(), getY(), getW(), getH()));
-		myPanelPixels =
+		pixels = PixelStore.wrap(
 				(int[]) image.
 				getProcessor().
 				crop().
-				getPixels();
+				getPixels(), getW(), getH());
 		maxW = getW();
 		maxH = getH();
+		invalidate();
 
 	}
 	public void setPanelPixels(ImagePlus image) {
 		hasImg = true;
+		pendingPixels = null;
 		if (image.getProcessor()==null) image.setProcessor(IJ.getImage().getProcessor());
 		System.out.println(image.
 				getProcessor() != null);  //TODO is null after opening a new image
 		// image.setRoi(new Roi(getX(), getY(), getW(), getH()));
-		myPanelPixels =
+		pixels = PixelStore.wrap(
 				(int[]) image.
 				getProcessor().
-				getPixels();
+				getPixels(), getW(), getH());
 		maxW = getW();
 		maxH = getH();
+		invalidate();
 
 	}
 
@@ -220,8 +275,11 @@ public class LeafPanel extends Panel{
 		{
 			maxW = panelWidth;
 			maxH = panelHeight;
-			myPanelPixels = pixels;
+			this.pixels = PixelStore.wrap(pixels, panelWidth, panelHeight);
 			hasImg = true;
+			stale = false;
+			pendingPixels = null;
+			invalidate();
 		}
 		else System.out.println("array length does not fit");
 
@@ -230,75 +288,57 @@ public class LeafPanel extends Panel{
 	@Override
 	public void setW(int w) //throws SideLengthTooSmallException {
 	{
-		removeROICoords();
 		if(w<minLeafSideLength)
 		{
 			System.out.println("STH WENT WRONG!!! (method: leaf setW)   tell it edda please!");
 			//throw new SideLengthTooSmallException();
 		}
 
+		invalidate();
 		this.panelWidth = w;
-		//if (w>maxW)
-		{
-			updatePixelArray();
-			maxW = w;
-		}
+		invalidate();
 	}
 
 	@Override
 	public void setH(int h) //throws SideLengthTooSmallException {
 	{
-		removeROICoords();
 		if(h<minLeafSideLength)
 		{
 			System.out.println("STH WENT WRONG!!! (method: leaf setH)   tell it edda please!");
 			//throw new SideLengthTooSmallException();
 		}
 
+		invalidate();
 		this.panelHeight = h;
-		//if (h>maxH)
-		{
-			updatePixelArray();
-			maxH = h;
-		}
+		invalidate();
 	}
 
 	@Override
 	protected void setX0PreservingX1(int x0) //throws SideLengthTooSmallException {
 	{
-		removeROICoords();
 		if(xPos+panelWidth - x0 < minLeafSideLength)
 		{
 			System.out.println("STH WENT WRONG!!! (method: leaf setX0PreservingX1)   tell it edda please!");
 			//throw new SideLengthTooSmallException();
 		}
+		invalidate();
 		panelWidth = xPos+panelWidth - x0;
 		xPos = x0;
-
-		//if (panelWidth>maxW)
-		{
-			updatePixelArray();
-			maxW = panelWidth;
-		}
+		invalidate();
 	}
 
 	@Override
 	protected void setY0PreservingY1(int y0) //throws SideLengthTooSmallException {
 	{
-		removeROICoords();
 		if(yPos+panelHeight - y0 < minLeafSideLength)
 		{
 			System.out.println("STH WENT WRONG!!! (method: leaf setY0PreservingY1)   tell it edda please!");
 			//throw new SideLengthTooSmallException();
 		}
+		invalidate();
 		panelHeight = yPos+panelHeight - y0;
 		yPos = y0;
-
-		//if (panelHeight>maxH)
-		{
-			updatePixelArray();
-			maxH = panelHeight;
-		}
+		invalidate();
 	}
 
 	@Override
@@ -336,14 +376,49 @@ public class LeafPanel extends Panel{
 		imgData = newData;
 	}
 
+	/** @param newColor background color of new figures, @see Panel#setPanelColor(int) */
 	public static void setColorValue(int newColor) {
 		colorValue = newColor;
 	}
 
+	/** @return background color of new figures */
+	public static int getColorValue() {
+		return colorValue;
+	}
+
+	/** @return true if the panel was resized since its pixels were extracted from the data source */
+	public boolean isStale() {
+		return stale;
+	}
+
+	public void setStale(boolean stale) {
+		this.stale = stale;
+	}
+
 	@Override
 	public void recover()
 	{
-		getNewArrayPixels();
+		getNewArrayPixels(getPanelColor());
+	}
+
+	/** the pixels are written as an array, whatever storage they are kept in */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		myPanelPixels = pixels == null ? null : pixels.asArray();
+		try {
+			out.defaultWriteObject();
+		}
+		finally {
+			myPanelPixels = null;
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		if(myPanelPixels != null)
+			pixels = PixelStore.wrap(myPanelPixels, maxW, maxH);
+		else
+			getNewArrayPixels(getPanelColor());
+		myPanelPixels = null;
 	}
 
 	/** returns true if x and y are inside the panel from which a certain tolerance border got subtracted */
@@ -361,6 +436,177 @@ public class LeafPanel extends Panel{
 		return list;
 	}
 
+	@Override
+	public List<LeafPanel> getLeaves(List<LeafPanel> list) {
+		list.add(this);
+		return list;
+	}
+
+	/** @return copy of the pixels (getPixelsWidth() x getPixelsHeight()), e.g. to save them */
+	public int[] getPixelsCopy() {
+		return pixels.toArray();
+	}
+
+	/** @return width of the pixels; differs from the panel width until a resized panel is drawn */
+	public int getPixelsWidth() {
+		return maxW;
+	}
+
+	/** @return height of the pixels, @see #getPixelsWidth() */
+	public int getPixelsHeight() {
+		return maxH;
+	}
+
+	/**
+	 * hands back pixels saved by getPixelsCopy
+	 * @return false if their size does not fit the size read from the figure file
+	 */
+	public boolean restorePixels(int[] saved, int w, int h) {
+		if(w != maxW || h != maxH || saved.length != w*h)
+			return false;
+		invalidate();
+		pixels = PixelStore.wrap(saved, w, h);
+		stale = false;
+		pendingPixels = null;
+		return true;
+	}
+
+	/**
+	 * the panel shows a placeholder until its saved pixels are loaded, e.g. by a background job
+	 * @param loader reads the saved pixels (getPixelsWidth() x getPixelsHeight()); is called on any thread
+	 */
+	public void setPendingPixels(Callable<int[]> loader) {
+		pendingPixels = loader;
+	}
+
+	/** @return loader of the saved pixels, null if they are loaded */
+	public Callable<int[]> getPendingPixels() {
+		return pendingPixels;
+	}
+
+	/**
+	 * hands back pixels read by the loader set with setPendingPixels. ignored if the panel got other pixels
+	 * in the meantime; if the panel was resized in the meantime, it is refilled from its image instead
+	 * @return true if the pixels were taken
+	 */
+	public boolean restorePixels(Callable<int[]> loader, int[] loaded) {
+		if(pendingPixels != loader)
+			return false;
+		pendingPixels = null;
+		if(loaded != null && restorePixels(loaded, maxW, maxH))
+			return true;
+		stale = true;
+		return false;
+	}
+
+	/**
+	 * loads pixels that are still pending on the calling thread, e.g. before the figure is saved or exported
+	 * @return true if pixels were loaded
+	 */
+	public boolean loadPendingPixels() {
+		Callable<int[]> loader = pendingPixels;
+		if(loader == null)
+			return false;
+		int[] loaded = null;
+		try {
+			loaded = loader.call();
+		}
+		catch(Exception e) {
+			IJ.log("FigureJ: could not load the pixels of a panel ("+e.getMessage()+")");
+		}
+		return restorePixels(loader, loaded);
+	}
+
+	/** the pixels are not part of the written fields; they are stored separately, @see utilities.FigureFile */
+	@Override
+	protected void writeFields(DataOutput out) throws IOException {
+		out.writeInt(maxW);
+		out.writeInt(maxH);
+		out.writeBoolean(hasImg);
+
+		out.writeBoolean(hasLabel);
+		FigureFile.writeString(out, labelText);
+		out.writeInt(xLabelOffset);
+		out.writeInt(yLabelOffset);
+		writeColor(out, labelColor);
+		out.writeBoolean(labelFont != null);
+		if(labelFont != null) {
+			FigureFile.writeString(out, labelFont.getName());
+			out.writeInt(labelFont.getStyle());
+			out.writeInt(labelFont.getSize());
+		}
+		FigureFile.writeString(out, labelPos.name());
+
+		out.writeBoolean(hasScalebar);
+		out.writeBoolean(scalebarVisible);
+		out.writeInt(xScaleOffset);
+		out.writeInt(yScaleOffset);
+		out.writeInt(scaleBarHeight);
+		out.writeDouble(scaleBarWidth);
+		writeColor(out, scalebarColor);
+
+		imgData.write(out);
+	}
+
+	@Override
+	protected void readFields(DataInput in, int version) throws IOException {
+		maxW = in.readInt();
+		maxH = in.readInt();
+		hasImg = in.readBoolean();
+
+		hasLabel = in.readBoolean();
+		labelText = FigureFile.readString(in);
+		xLabelOffset = in.readInt();
+		yLabelOffset = in.readInt();
+		labelColor = readColor(in);
+		if(in.readBoolean())
+			labelFont = new Font(FigureFile.readString(in), in.readInt(), in.readInt());
+		labelPos = LabelPosition.valueOf(FigureFile.readString(in));
+
+		hasScalebar = in.readBoolean();
+		scalebarVisible = in.readBoolean();
+		xScaleOffset = in.readInt();
+		yScaleOffset = in.readInt();
+		scaleBarHeight = in.readInt();
+		scaleBarWidth = in.readDouble();
+		scalebarColor = readColor(in);
+
+		imgData = DataSource.read(in, version);
+
+		// placeholder until the saved pixels are restored or the panel is refilled from its image
+		pixels = PixelStore.create(maxW, maxH);
+		if(hasImg)
+			fillPlaceholder();
+		else
+			pixels.fill(getPanelColor());
+		stale = hasImg;
+	}
+
+	/** a checkerboard of the panel color and a lighter shade of it, for panels whose pixels are not loaded yet */
+	private void fillPlaceholder() {
+		final int square = 16;
+		int color = getPanelColor();
+		int lighter = new Color(color).brighter().getRGB() & 0xffffff;
+		int[][] rows = new int[2][maxW];
+		for(int x=0; x<maxW; x++) {
+			boolean even = (x/square)%2 == 0;
+			rows[0][x] = even ? color : lighter;
+			rows[1][x] = even ? lighter : color;
+		}
+		for(int y=0; y<maxH; y++)
+			pixels.setRow(y, 0, rows[(y/square)%2], 0, maxW);
+	}
+
+	private static void writeColor(DataOutput out, Color c) throws IOException {
+		out.writeBoolean(c != null);
+		if(c != null)
+			out.writeInt(c.getRGB());
+	}
+
+	private static Color readColor(DataInput in) throws IOException {
+		return in.readBoolean() ? new Color(in.readInt(), true) : null;
+	}
+
 	@Override
 	public String generateImageNotesString(String s) {
 		//		if(imgData.getNotes()!=imgData.defaultNote) {
@@ -370,10 +616,6 @@ public class LeafPanel extends Panel{
 		return s;
 	}
 
-	private void removeROICoords() {
-		imgData.setCoords(null, null);
-	}
-
 
 
 	/**
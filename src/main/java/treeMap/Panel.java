@@ -11,6 +11,10 @@ import ij.ImagePlus;
 import ij.gui.Overlay;
 import ij.gui.Roi;
 
+import java.awt.Rectangle;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
@@ -35,6 +39,16 @@ public abstract class Panel implements Serializable{
 
 	public final static int snapDist 			= 15;
 
+	// panel types in the figure file format
+	private static final byte containerType	= 0;
+	private static final byte separatorType	= 1;
+	private static final byte leafType		= 2;
+
+	// area of the result image that changed since the last draw; only collected by the root panel
+	protected transient Rectangle dirtyRegion = null;
+	// background color of the empty panels of the figure; only set on the root panel, null for the default color
+	private Integer panelColor;
+
 	public Panel(int xPos, int yPos, int w, int h) {
 		this.parentPanel = null;
 		this.xPos = xPos;
@@ -145,9 +159,71 @@ public abstract class Panel implements Serializable{
 	/**@param resIMG the image to draw on
 	 * the panel draws its pixels in the right position to on the resIMG*/
 	public void draw(ImagePlus resIMG) {
+		draw(resIMG, null);
+	}
+
+	/**@param resIMG the image to draw on
+	 * @param clip area of resIMG that has to be redrawn, null for the whole image
+	 * only the children overlapping the clip rectangle draw their pixels inside of it */
+	public void draw(ImagePlus resIMG, Rectangle clip) {
+		Compositor compositor = new Compositor(resIMG, clip);
+		draw(compositor);
+		compositor.commit();
+	}
+
+	/**@param compositor collects the pixels of the panels on the result image
+	 * children outside of the compositor's clip rectangle are skipped */
+	public void draw(Compositor compositor) {
 		for (Panel child : children) {
-			child.draw(resIMG);
+			if(child.intersects(compositor.getClip()))
+				child.draw(compositor);
+		}
+	}
+
+	/** @return true if the panel overlaps the rectangle r */
+	protected boolean intersects(Rectangle r) {
+		return xPos < r.x+r.width && r.x < xPos+panelWidth && yPos < r.y+r.height && r.y < yPos+panelHeight;
+	}
+
+	/** mark the current area of the panel as changed, so that it is redrawn by the next incremental draw.
+	 * called before and after every change of size or position */
+	protected void invalidate() {
+		invalidate(xPos, yPos, panelWidth, panelHeight);
+		PanelIndex index = getIndex();
+		if(index != null)
+			index.update(this);
+	}
+
+	/** @return spatial index of the tree the panel belongs to; null if the tree's root did not build it yet */
+	protected PanelIndex getIndex() {
+		Panel root = this;
+		while(root.parentPanel != null)
+			root = root.parentPanel;
+		if(root instanceof ContainerPanel)
+			return ((ContainerPanel) root).index;
+		return null;
+	}
+
+	/** passes the changed area up to the root panel that collects the union of all changed areas */
+	protected void invalidate(int x, int y, int w, int h) {
+		if(parentPanel != null) {
+			parentPanel.invalidate(x, y, w, h);
+			return;
 		}
+		if(dirtyRegion == null)
+			dirtyRegion = new Rectangle(x, y, w, h);
+		else
+			dirtyRegion.add(new Rectangle(x, y, w, h));
+	}
+
+	/** @return union of the areas changed since the last call of clearDirtyRegion() or null if nothing changed */
+	public Rectangle getDirtyRegion() {
+		return dirtyRegion;
+	}
+
+	/** forget about the changed areas, e.g. after the whole tree was drawn */
+	public void clearDirtyRegion() {
+		dirtyRegion = null;
 	}
 
 	/** @return ROI of panel size and position */
@@ -178,6 +254,19 @@ public abstract class Panel implements Serializable{
 	public int getH() {
 		return panelHeight;
 	}
+	/**@return background color of the empty panels of the figure the panel belongs to; the color of new figures
+	 * if none was set, @see LeafPanel#getColorValue() */
+	public int getPanelColor() {
+		if(parentPanel != null)
+			return parentPanel.getPanelColor();
+		return panelColor != null ? panelColor : LeafPanel.getColorValue();
+	}
+
+	/**@param color background color of the empty panels of the figure; to be set on the root panel */
+	public void setPanelColor(int color) {
+		panelColor = color;
+	}
+
 	/**@return parent panel (panel of the next higher level in the tree)*/
 	public ContainerPanel getParent() {
 		return parentPanel;
@@ -196,7 +285,9 @@ public abstract class Panel implements Serializable{
 	 * with the canSetW(..) method if you want to have your panels to have a minimum side length*/
 	public void setW(int w)  //throws SideLengthTooSmallException {
 	{
+		invalidate();
 		this.panelWidth = w;
+		invalidate();
 	}
 	/**changes the y1 coordinate of the panel
 	 * @param h new height of the panel
@@ -204,7 +295,9 @@ public abstract class Panel implements Serializable{
 	 * with the canSetH(..) method if you want to have your panels to have a minimum side length*/
 	public void setH(int h) //throws SideLengthTooSmallException {
 	{
+		invalidate();
 		this.panelHeight = h;
+		invalidate();
 	}
 	/**changes the width of the panel as well as its left x value (x0).
 	 * doesn't change the x1 coordinate.
@@ -218,8 +311,10 @@ public abstract class Panel implements Serializable{
 			System.out.println("EXCEPTION in class panel setY0PreservingY1: x0 > x1!!! please report that to edda!");
 			//throw new SideLengthTooSmallException();
 		}
+		invalidate();
 		panelWidth = xPos+panelWidth - x0;
 		xPos = x0;
+		invalidate();
 	}
 	/**changes the height of the panel as well as its upper y value (y0).
 	 * doesn't change the x1 coordinate.
@@ -233,8 +328,10 @@ public abstract class Panel implements Serializable{
 			System.out.println("EXCEPTOPN in class panel setY0PreservingY1: y0 > y1!!  please report that to edda!");
 			//throw new SideLengthTooSmallException();
 		}
+		invalidate();
 		panelHeight = yPos+panelHeight - y0;
 		yPos = y0;
+		invalidate();
 	}
 	/**
 	 * @param new width for the current panel
@@ -289,17 +386,21 @@ public abstract class Panel implements Serializable{
 	/**changes both x values, preserves the width of the panel.
 	 * @param newX new value for the left x coordinate  */
 	protected void setX(int newX) {
+		invalidate();
 		if(newX<0) xPos = 0;
 		else
 			xPos = newX;
+		invalidate();
 	}
 
 	/**changes both y values, preserves the height of the panel.
 	 * @param newY new value for the left y coordinate  */
 	protected void setY(int newY) {
+		invalidate();
 		if(newY<0) yPos = 0;
 		else
 			yPos = newY;
+		invalidate();
 	}
 
 
@@ -349,6 +450,81 @@ public abstract class Panel implements Serializable{
 		return list;
 	}
 
+	/**@param list empty list
+	 * @return the list filled with all leaves below this panel, in the same order as getDataSources */
+	public List<LeafPanel> getLeaves(List<LeafPanel> list) {
+		for(Panel p:children)
+			p.getLeaves(list);
+		return list;
+	}
+
+	/**@param list empty list
+	 * @return the list filled with this panel and all panels below it, in the order write() writes them */
+	public List<Panel> getPanels(List<Panel> list) {
+		list.add(this);
+		for(Panel p:children)
+			p.getPanels(list);
+		return list;
+	}
+
+	/** writes the panel and all panels below it in the figure file format, @see utilities.FigureFile */
+	public void write(DataOutput out) throws IOException {
+		out.writeByte(this instanceof ContainerPanel ? containerType : this instanceof SeparatorPanel ? separatorType : leafType);
+		out.writeInt(xPos);
+		out.writeInt(yPos);
+		out.writeInt(panelWidth);
+		out.writeInt(panelHeight);
+		writeFields(out);
+		out.writeInt(children.size());
+		for(Panel child: children)
+			child.write(out);
+	}
+
+	/**
+	 * reads a panel tree written by write()
+	 * @param version version of the figure file format
+	 * @param panelColor background color of the figure, @see #setPanelColor(int)
+	 * @return the root panel, its children attached
+	 */
+	public static Panel read(DataInput in, int version, int panelColor) throws IOException {
+		return read(in, version, panelColor, null);
+	}
+
+	/** every panel is attached to its parent before its fields are read, so that it finds the color of the figure */
+	private static Panel read(DataInput in, int version, int panelColor, Panel parent) throws IOException {
+		byte type = in.readByte();
+		int x = in.readInt();
+		int y = in.readInt();
+		int w = in.readInt();
+		int h = in.readInt();
+		Panel p;
+		if(type == containerType)
+			p = new ContainerPanel(x, y, w, h);
+		else if(type == separatorType)
+			p = new SeparatorPanel(x, y, w, h);
+		else if(type == leafType)
+			p = new LeafPanel(x, y, w, h, false);
+		else
+			throw new IOException("unknown panel type "+type);
+		if(parent == null)
+			p.setPanelColor(panelColor);
+		else
+			parent.addChild(p);
+		p.readFields(in, version);
+		int nrOfChildren = in.readInt();
+		for(int i=0; i<nrOfChildren; i++)
+			read(in, version, panelColor, p);
+		return p;
+	}
+
+	/** writes the properties particular to the panel type */
+	protected void writeFields(DataOutput out) throws IOException {
+	}
+
+	/** reads the properties written by writeFields */
+	protected void readFields(DataInput in, int version) throws IOException {
+	}
+
 	/**
 	 * @param resultFigure image to draw on
 	 * @param text label text
@@ -0,0 +1,229 @@
+package treeMap;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * spatial index over the leaves and separators of a panel tree, owned by the root panel.
+ * clicks are looked up in a grid of buckets covering the figure, separator snapping uses
+ * sorted maps of the separator coordinates, so both do not depend on the number of panels.
+ *
+ * the index is kept up to date by the tree: panels added or removed by split and remove
+ * are (un)registered directly; panels that change size or position (reShape) are marked
+ * and re-bucketed before the next query.
+ */
+public class PanelIndex {
+
+	private static final int cellsPerSide = 64;
+	private static final int minCellSize = 32;
+
+	private final int x0;
+	private final int y0;
+	private final int cellSize;
+	private final int cols;
+	private final int rows;
+	private final List<ArrayList<Panel>> cells;
+
+	// bounds every leaf and separator was bucketed with
+	private final Map<Panel, Rectangle> registered = new IdentityHashMap<Panel, Rectangle>();
+	// panels whose geometry changed since the last query
+	private final Set<Panel> changed = Collections.newSetFromMap(new IdentityHashMap<Panel, Boolean>());
+
+	// horizontal separators by their y value, vertical ones by their x value and
+	// horizontal ones by the x value of their middle (@see SeparatorPanel.getClosestX)
+	private final TreeMap<Integer, List<SeparatorPanel>> horizontalByY 		= new TreeMap<Integer, List<SeparatorPanel>>();
+	private final TreeMap<Integer, List<SeparatorPanel>> verticalByX 		= new TreeMap<Integer, List<SeparatorPanel>>();
+	private final TreeMap<Integer, List<SeparatorPanel>> horizontalByMiddleX 	= new TreeMap<Integer, List<SeparatorPanel>>();
+
+	/** builds the index for all leaves and separators of the tree below root */
+	public PanelIndex(Panel root) {
+		x0 = root.getX();
+		y0 = root.getY();
+		cellSize = Math.max(minCellSize, Math.max(root.getW(), root.getH()) / cellsPerSide + 1);
+		cols = root.getW() / cellSize + 1;
+		rows = root.getH() / cellSize + 1;
+		cells = new ArrayList<ArrayList<Panel>>(cols*rows);
+		for(int i=0; i<cols*rows; i++)
+			cells.add(new ArrayList<Panel>(2));
+		add(root);
+	}
+
+	/** registers p or, for containers, all leaves and separators below p */
+	public void add(Panel p) {
+		if(p instanceof ContainerPanel) {
+			for(Panel child: p.getChildren())
+				add(child);
+			return;
+		}
+		if(registered.containsKey(p))
+			unregister(p);
+		register(p);
+	}
+
+	/** removes a leaf or separator that was taken out of the tree. containers are not indexed themselves */
+	public void remove(Panel p) {
+		changed.remove(p);
+		if(registered.containsKey(p))
+			unregister(p);
+	}
+
+	/** marks a panel whose size or position changed; it is re-bucketed lazily */
+	public void update(Panel p) {
+		if(registered.containsKey(p))
+			changed.add(p);
+	}
+
+	/** @return the separator or leaf that was clicked, @see Panel.getClicked(int, int, int).
+	 * if several panels match (separators are clickable in a tolerance zone around them), the one
+	 * coming last in the tree wins, as if the tree had been searched */
+	public Panel getClicked(int x, int y, int tol) {
+		refresh();
+		int c0 = col(x-tol), c1 = col(x+tol);
+		int r0 = row(y-tol), r1 = row(y+tol);
+		Panel clicked = null;
+		for(int r=r0; r<=r1; r++)
+			for(int c=c0; c<=c1; c++)
+				for(Panel p: cells.get(r*cols+c)) {
+					if(p == clicked || !p.isClicked(x, y, tol))
+						continue;
+					if(clicked == null || comesAfter(p, clicked))
+						clicked = p;
+				}
+		return clicked;
+	}
+
+	/** @return true if a is visited after b when the tree is searched depth first */
+	private static boolean comesAfter(Panel a, Panel b) {
+		List<Panel> pathA = pathFromRoot(a);
+		List<Panel> pathB = pathFromRoot(b);
+		int i = 0;
+		while(i < pathA.size() && i < pathB.size() && pathA.get(i) == pathB.get(i))
+			i++;
+		if(i == pathA.size() || i == pathB.size())	// one contains the other
+			return pathA.size() > pathB.size();
+		List<Panel> siblings = pathA.get(i-1).getChildren();
+		return siblings.indexOf(pathA.get(i)) > siblings.indexOf(pathB.get(i));
+	}
+
+	private static List<Panel> pathFromRoot(Panel p) {
+		ArrayList<Panel> path = new ArrayList<Panel>();
+		for(Panel q=p; q!=null; q=q.getParent())
+			path.add(q);
+		Collections.reverse(path);
+		return path;
+	}
+
+	/** @see Panel.getClosestY(Panel, int) */
+	public int getClosestY(Panel p, int currentClosest) {
+		refresh();
+		NavigableMap<Integer, List<SeparatorPanel>> window =
+				horizontalByY.subMap(p.getY()-Panel.snapDist, false, p.getY()+Panel.snapDist, false);
+		for(Map.Entry<Integer, List<SeparatorPanel>> e: window.entrySet())
+			if(containsOther(e.getValue(), p))
+				return Math.min(currentClosest, e.getKey());
+		return currentClosest;
+	}
+
+	/** @see Panel.getClosestX(Panel, int) */
+	public int getClosestX(Panel p, int currentClosest) {
+		refresh();
+		NavigableMap<Integer, List<SeparatorPanel>> window =
+				verticalByX.subMap(p.getX()-Panel.snapDist, false, p.getX()+Panel.snapDist, false);
+		for(Map.Entry<Integer, List<SeparatorPanel>> e: window.entrySet())
+			if(containsOther(e.getValue(), p)) {
+				currentClosest = Math.min(currentClosest, e.getKey());
+				break;
+			}
+		// horizontal separators snap with their middle, but report their left x coordinate
+		window = horizontalByMiddleX.subMap(p.getX()-Panel.snapDist, false, p.getX()+Panel.snapDist, false);
+		for(List<SeparatorPanel> list: window.values())
+			for(SeparatorPanel s: list)
+				if(s != p && s.getX() < currentClosest)
+					currentClosest = s.getX();
+		return currentClosest;
+	}
+
+	private boolean containsOther(List<SeparatorPanel> list, Panel p) {
+		return list.size() > 1 || list.get(0) != p;
+	}
+
+	/** re-bucket the panels that changed their geometry */
+	private void refresh() {
+		if(changed.isEmpty())
+			return;
+		for(Panel p: changed) {
+			unregister(p);
+			register(p);
+		}
+		changed.clear();
+	}
+
+	private void register(Panel p) {
+		Rectangle r = new Rectangle(p.getX(), p.getY(), p.getW(), p.getH());
+		registered.put(p, r);
+		for(int row=row(r.y); row<=row(r.y+r.height); row++)
+			for(int col=col(r.x); col<=col(r.x+r.width); col++)
+				cells.get(row*cols+col).add(p);
+		if(p instanceof SeparatorPanel) {
+			SeparatorPanel s = (SeparatorPanel) p;
+			if(r.width > r.height) {
+				put(horizontalByY, r.y, s);
+				put(horizontalByMiddleX, middleX(r), s);
+			}
+			else if(r.width < r.height)
+				put(verticalByX, r.x, s);
+		}
+	}
+
+	private void unregister(Panel p) {
+		Rectangle r = registered.remove(p);
+		for(int row=row(r.y); row<=row(r.y+r.height); row++)
+			for(int col=col(r.x); col<=col(r.x+r.width); col++)
+				cells.get(row*cols+col).remove(p);
+		if(p instanceof SeparatorPanel) {
+			if(r.width > r.height) {
+				take(horizontalByY, r.y, p);
+				take(horizontalByMiddleX, middleX(r), p);
+			}
+			else if(r.width < r.height)
+				take(verticalByX, r.x, p);
+		}
+	}
+
+	private static int middleX(Rectangle r) {
+		return r.x + r.width/2 - Panel.separatorWidth;
+	}
+
+	private static void put(TreeMap<Integer, List<SeparatorPanel>> map, int key, SeparatorPanel s) {
+		List<SeparatorPanel> list = map.get(key);
+		if(list == null) {
+			list = new ArrayList<SeparatorPanel>(1);
+			map.put(key, list);
+		}
+		list.add(s);
+	}
+
+	private static void take(TreeMap<Integer, List<SeparatorPanel>> map, int key, Panel s) {
+		List<SeparatorPanel> list = map.get(key);
+		if(list == null)
+			return;
+		list.remove(s);
+		if(list.isEmpty())
+			map.remove(key);
+	}
+
+	private int col(int x) {
+		return Math.max(0, Math.min(cols-1, (x-x0) / cellSize));
+	}
+
+	private int row(int y) {
+		return Math.max(0, Math.min(rows-1, (y-y0) / cellSize));
+	}
+}
@@ -0,0 +1,434 @@
+package treeMap;
+
+import ij.IJ;
+import ij.Prefs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * RGB pixels of a leaf panel, stored row by row. by default the pixels are kept in an array on
+ * the java heap; with the preference figurej.panelStorage set to "direct" they are stored in
+ * direct byte buffers, with "mapped" in memory mapped temporary files. then only the result
+ * figure is kept on the heap and large figures fit into the memory ImageJ was started with.
+ * with "figure" a panel shares its pixels with the rectangle it covers on the result figure
+ * (a view with offset and stride into the pixel array of the figure) as soon as it was drawn,
+ * so the pixels exist only once and unchanged panels do not have to be copied when the figure
+ * is redrawn. pixels are only copied out of the figure while the panel changes its geometry.
+ * this mode has to be chosen explicitly, because the figure is not a disposable composite anymore:
+ * ImageJ commands, macros and paint tools run on the FigureJ window change the pixels of the panels
+ * themselves, which are then saved with the figure and drawn again. only use it for figures that
+ * are not edited with other tools than FigureJ.
+ *
+ * stores may hold more memory than needed for their size (capacity); recenter() reuses it when a
+ * panel is resized and grows it like an ArrayList, so that resizing does not allocate every time.
+ * direct and mapped memory is freed by the garbage collector once no store uses it anymore: stores
+ * replaced on the event dispatch thread may still be read by threads drawing or exporting the figure.
+ * direct and mapped stores hold at most maxBufferPixels pixels (2 GB, the limit of a byte buffer).
+ */
+public abstract class PixelStore {
+
+	public static final String HEAP 	= "heap";
+	public static final String DIRECT 	= "direct";
+	public static final String MAPPED 	= "mapped";
+	public static final String FIGURE 	= "figure";
+
+	/** most pixels a direct or mapped store can hold */
+	public static final int maxBufferPixels = Integer.MAX_VALUE/4;
+
+	protected final int width;
+	protected final int height;
+
+	protected PixelStore(int width, int height) {
+		this.width = width;
+		this.height = height;
+	}
+
+	private static boolean figureModeLogged = false;
+
+	/** @return storage mode selected in the preferences */
+	public static String getMode() {
+		String mode = Prefs.get("figurej.panelStorage", HEAP);
+		if(mode.equals(FIGURE) && !figureModeLogged) {
+			figureModeLogged = true;
+			IJ.log("FigureJ: panels share their pixels with the figure (figurej.panelStorage=figure);"
+					+" editing the figure window with ImageJ tools or macros changes the panels");
+		}
+		return mode;
+	}
+
+	/** @return new store of w x h pixels in the storage mode of the preferences; contents are undefined */
+	public static PixelStore create(int w, int h) {
+		return create(w, h, w*h);
+	}
+
+	/**
+	 * @return new store of w x h pixels with memory for capacity pixels
+	 * @throws IllegalArgumentException if w x h pixels do not fit into a direct or mapped store
+	 */
+	private static PixelStore create(int w, int h, int capacity) {
+		String mode = getMode();
+		if(mode.equals(DIRECT) || mode.equals(MAPPED)) {
+			if((long) w*h > maxBufferPixels)
+				throw new IllegalArgumentException("panel of "+w+" x "+h+" pixels is larger than the 2 GB a "
+						+mode+" store can hold (figurej.panelStorage="+mode+")");
+			int bytes = 4*Math.min(capacity, maxBufferPixels);
+			try {
+				if(mode.equals(MAPPED))
+					return new BufferStore(w, h, mapTempFile(bytes));
+				return new BufferStore(w, h, ByteBuffer.allocateDirect(bytes));
+			}
+			catch (IOException e) {
+				IJ.log("FigureJ: could not map panel pixels to a file, keeping them in memory ("+e.getMessage()+")");
+			}
+			catch (OutOfMemoryError e) {
+				IJ.log("FigureJ: no direct memory left for panel pixels, keeping them on the heap");
+			}
+		}
+		return new HeapStore(w, h, new int[capacity]);
+	}
+
+	/** @return store of the same mode as the preferences containing a copy of the pixels, or the array itself for heap storage */
+	public static PixelStore wrap(int[] pixels, int w, int h) {
+		String mode = getMode();
+		if(!mode.equals(DIRECT) && !mode.equals(MAPPED))
+			return new HeapStore(w, h, pixels);
+		PixelStore store = create(w, h);
+		for(int y=0; y<h; y++)
+			store.setRow(y, 0, pixels, y*w, w);
+		return store;
+	}
+
+	private static ByteBuffer mapTempFile(int bytes) throws IOException {
+		File file = File.createTempFile("figurej", ".pixels");
+		file.deleteOnExit();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(bytes);
+			// the mapping stays valid after the channel is closed
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+		}
+		finally {
+			raf.close();
+			file.delete();	// no effect on systems that do not allow to delete mapped files, deleteOnExit handles these
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/** copies length pixels of row y starting at x to dst */
+	public abstract void getRow(int y, int x, int[] dst, int dstOffset, int length);
+
+	/** copies length pixels from src to row y starting at x */
+	public abstract void setRow(int y, int x, int[] src, int srcOffset, int length);
+
+	/** sets all pixels to color */
+	public abstract void fill(int color);
+
+	/** @return the pixel array for heap storage and views of the figure, null otherwise */
+	int[] array() {
+		return null;
+	}
+
+	/** @return index of the upper left pixel in array() */
+	int offset() {
+		return 0;
+	}
+
+	/** @return distance between two rows in array() */
+	int stride() {
+		return width;
+	}
+
+	/** @return a store using the pixels of a rectangle of the array, e.g. of the result figure */
+	static PixelStore view(int[] array, int offset, int stride, int w, int h) {
+		return new ViewStore(w, h, array, offset, stride);
+	}
+
+	/** @return true if the store is a view of the array starting at offset with the given stride */
+	boolean isViewOf(int[] array, int offset, int stride) {
+		return false;
+	}
+
+	/** @return true if the pixels are shared with another image, e.g. the result figure */
+	public boolean isView() {
+		return false;
+	}
+
+	/** @return a buffer of all pixels with its own position (safe for use by a single thread), null for heap storage */
+	IntBuffer buffer() {
+		return null;
+	}
+
+	/**
+	 * stores owning a contiguous block of memory, which can be reused for another size (views of the figure
+	 * can not); pixel (x, y) is at index y*width+x of the memory. @see #recenter(int, int, int)
+	 */
+	interface Reusable {
+		/** @return number of pixels the memory of the store can hold */
+		int capacity();
+
+		/** @return store of w x h pixels using the same memory, w*h <= capacity() */
+		Reusable resize(int w, int h);
+
+		/** moves length pixels inside the memory of the store, the ranges may overlap. tmp holds at least length pixels */
+		void move(int from, int to, int length, int[] tmp);
+
+		/** sets the pixels [from, to) of the memory of the store to color */
+		void fillRange(int from, int to, int color);
+	}
+
+	/**
+	 * @return store of w x h pixels with these pixels centered in it (cropped if they do not fit) and background
+	 * around them. the memory of this store is reused if it is large enough, otherwise new memory is allocated
+	 * with room to grow, up to maxBufferPixels for direct and mapped stores. this store must not be used afterwards.
+	 * @throws IllegalArgumentException if w x h pixels do not fit into a direct or mapped store
+	 */
+	public PixelStore recenter(int w, int h, int background) {
+		int offX = w/2 - width/2;
+		int offY = h/2 - height/2;
+		int x0 = Math.max(0, offX);
+		int x1 = Math.min(w, offX+width);
+		int y0 = Math.max(0, offY);
+		int y1 = Math.min(h, offY+height);
+		int length = Math.max(0, x1-x0);
+		int rows = length == 0 ? 0 : Math.max(0, y1-y0);
+		int[] tmp = array() == null ? new int[Math.max(length, 1)] : null;
+
+		Reusable memory = this instanceof Reusable ? (Reusable) this : null;
+		Reusable target;
+		if(memory != null && memory.capacity() >= (long) w*h) {
+			// in place: first the kept part of every row is packed to the start of the memory (rows move
+			// to lower indices), then the rows are spread to their new place starting with the last one
+			// (rows move to higher indices), so no row is overwritten before it was moved
+			for(int k=0; k<rows; k++)
+				memory.move((y0-offY+k)*width + x0-offX, k*length, length, tmp);
+			target = memory.resize(w, h);
+			for(int k=rows-1; k>=0; k--)
+				target.move(k*length, (y0+k)*w + x0, length, tmp);
+		}
+		else {
+			long capacity = memory == null ? 0 : memory.capacity();
+			long grown = capacity + capacity/2;
+			target = (Reusable) create(w, h, (int) Math.min(Integer.MAX_VALUE-8, Math.max((long) w*h, grown)));
+			if(tmp == null)
+				tmp = new int[Math.max(length, 1)];
+			for(int k=0; k<rows; k++) {
+				getRow(y0-offY+k, x0-offX, tmp, 0, length);
+				((PixelStore) target).setRow(y0+k, x0, tmp, 0, length);
+			}
+		}
+
+		// background around the kept pixels
+		target.fillRange(0, y0*w, background);
+		for(int y=y0; y<y0+rows; y++) {
+			target.fillRange(y*w, y*w+x0, background);
+			target.fillRange(y*w+x0+length, (y+1)*w, background);
+		}
+		target.fillRange((y0+rows)*w, h*w, background);
+		return (PixelStore) target;
+	}
+
+	/** @return the pixels as an array of width*height pixels, the stored array itself if possible */
+	int[] asArray() {
+		return toArray();
+	}
+
+	/** @return the pixels as a new array on the heap */
+	public int[] toArray() {
+		int[] pixels = new int[width*height];
+		for(int y=0; y<height; y++)
+			getRow(y, 0, pixels, y*width, width);
+		return pixels;
+	}
+
+	/** pixels stored in an int array on the heap */
+	private static class HeapStore extends PixelStore implements Reusable {
+		private final int[] pixels;
+
+		HeapStore(int w, int h, int[] pixels) {
+			super(w, h);
+			this.pixels = pixels;
+		}
+
+		@Override
+		public void getRow(int y, int x, int[] dst, int dstOffset, int length) {
+			System.arraycopy(pixels, y*width+x, dst, dstOffset, length);
+		}
+
+		@Override
+		public void setRow(int y, int x, int[] src, int srcOffset, int length) {
+			System.arraycopy(src, srcOffset, pixels, y*width+x, length);
+		}
+
+		@Override
+		public void fill(int color) {
+			Arrays.fill(pixels, 0, width*height, color);
+		}
+
+		@Override
+		int[] array() {
+			return pixels;
+		}
+
+		public int capacity() {
+			return pixels.length;
+		}
+
+		public Reusable resize(int w, int h) {
+			return new HeapStore(w, h, pixels);
+		}
+
+		public void move(int from, int to, int length, int[] tmp) {
+			System.arraycopy(pixels, from, pixels, to, length);
+		}
+
+		public void fillRange(int from, int to, int color) {
+			Arrays.fill(pixels, from, to, color);
+		}
+
+		@Override
+		int[] asArray() {
+			return pixels.length == width*height ? pixels : toArray();
+		}
+
+		@Override
+		public int[] toArray() {
+			return Arrays.copyOf(pixels, width*height);
+		}
+	}
+
+	/** rectangle of a larger pixel array, e.g. a panel on the result figure */
+	private static class ViewStore extends PixelStore {
+		private final int[] pixels;
+		private final int offset;
+		private final int stride;
+
+		ViewStore(int w, int h, int[] pixels, int offset, int stride) {
+			super(w, h);
+			this.pixels = pixels;
+			this.offset = offset;
+			this.stride = stride;
+		}
+
+		@Override
+		public void getRow(int y, int x, int[] dst, int dstOffset, int length) {
+			System.arraycopy(pixels, offset+y*stride+x, dst, dstOffset, length);
+		}
+
+		@Override
+		public void setRow(int y, int x, int[] src, int srcOffset, int length) {
+			System.arraycopy(src, srcOffset, pixels, offset+y*stride+x, length);
+		}
+
+		@Override
+		public void fill(int color) {
+			for(int y=0; y<height; y++)
+				Arrays.fill(pixels, offset+y*stride, offset+y*stride+width, color);
+		}
+
+		@Override
+		int[] array() {
+			return pixels;
+		}
+
+		@Override
+		int offset() {
+			return offset;
+		}
+
+		@Override
+		int stride() {
+			return stride;
+		}
+
+		@Override
+		boolean isViewOf(int[] array, int offset, int stride) {
+			return pixels == array && this.offset == offset && this.stride == stride;
+		}
+
+		@Override
+		public boolean isView() {
+			return true;
+		}
+	}
+
+	/** pixels stored outside of the heap in a direct or mapped byte buffer */
+	private static class BufferStore extends PixelStore implements Reusable {
+		// memory allocated or mapped, shared by the stores returned by resize()
+		private final IntBuffer pixels;
+
+		BufferStore(int w, int h, ByteBuffer bytes) {
+			this(w, h, bytes.order(ByteOrder.nativeOrder()).asIntBuffer());
+		}
+
+		private BufferStore(int w, int h, IntBuffer pixels) {
+			super(w, h);
+			this.pixels = pixels;
+		}
+
+		@Override
+		public void getRow(int y, int x, int[] dst, int dstOffset, int length) {
+			IntBuffer b = pixels.duplicate();
+			b.position(y*width+x);
+			b.get(dst, dstOffset, length);
+		}
+
+		@Override
+		public void setRow(int y, int x, int[] src, int srcOffset, int length) {
+			IntBuffer b = pixels.duplicate();
+			b.position(y*width+x);
+			b.put(src, srcOffset, length);
+		}
+
+		@Override
+		public void fill(int color) {
+			int[] row = new int[width];
+			Arrays.fill(row, color);
+			for(int y=0; y<height; y++)
+				setRow(y, 0, row, 0, width);
+		}
+
+		@Override
+		IntBuffer buffer() {
+			return pixels.duplicate();
+		}
+
+		public int capacity() {
+			return pixels.capacity();
+		}
+
+		public Reusable resize(int w, int h) {
+			return new BufferStore(w, h, pixels);
+		}
+
+		public void move(int from, int to, int length, int[] tmp) {
+			IntBuffer b = pixels.duplicate();
+			b.position(from);
+			b.get(tmp, 0, length);
+			b.position(to);
+			b.put(tmp, 0, length);
+		}
+
+		public void fillRange(int from, int to, int color) {
+			int[] row = new int[Math.max(1, Math.min(to-from, 1<<16))];
+			Arrays.fill(row, color);
+			IntBuffer b = pixels.duplicate();
+			b.position(from);
+			for(int i=from; i<to; i+=row.length)
+				b.put(row, 0, Math.min(row.length, to-i));
+		}
+	}
+}
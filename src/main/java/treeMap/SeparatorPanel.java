@@ -1,9 +1,7 @@
 package treeMap;
 
-import ij.ImagePlus;
 import ij.gui.Roi;
 import ij.plugin.Colors;
-import ij.process.ImageProcessor;
 
 /*
  * @author Edda Zinck
@@ -36,17 +34,8 @@ public class SeparatorPanel extends Panel{
 
 
 	@Override
-	public void draw(ImagePlus resImg){
-		ImageProcessor imp = resImg.getProcessor();
-		int figHeight = resImg.getHeight();
-		int figWidth  = resImg.getWidth();
-		int[] pixels  = (int[]) imp.getPixels();
-		for(int imgY=yPos; 		imgY < Math.min(figHeight, yPos+panelHeight); imgY++)
-			for(int imgX=xPos; 	imgX < Math.min(figWidth,  xPos+panelWidth ); imgX++) {
-				pixels[imgY*figWidth + imgX] = rgbDefColor;
-			}
-		imp.setPixels(pixels);
-		resImg.setProcessor(imp);
+	public void draw(Compositor compositor){
+		compositor.fill(rgbDefColor, xPos, yPos, panelWidth, panelHeight);
 	}
 
 	@Override
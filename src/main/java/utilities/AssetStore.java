@@ -0,0 +1,169 @@
+package utilities;
+/*
+ * optional store of source images shared by all saved figures, switched on by setting the preference
+ * figurej.assetStore to a folder. every image is stored once, named by the SHA-1 of its content
+ * (<store>/<first two hex digits>/<hash>.<extension>); figure folders only hold hard links to these
+ * files or, where links are not possible (other file system, java 6), a small reference file
+ * <name>.ref. data sources resolve their paths through the references, @see dataSets.DataSource#getFilePath().
+ * stored files are made read-only, since a hard link shares the content with the store.
+ */
+import ij.IJ;
+import ij.Prefs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.reflect.Method;
+
+public class AssetStore {
+
+	/** extension of reference files in figure folders */
+	public static final String refExtension = ".ref";
+
+	private final File root;
+
+	private AssetStore(File root) {
+		this.root = root;
+	}
+
+	/** @return the store set in the preferences, null if figures keep their own copies */
+	public static AssetStore getDefault() {
+		String path = Prefs.get("figurej.assetStore", "");
+		if(path == null || path.trim().equals(""))
+			return null;
+		File root = new File(path.trim());
+		if(!root.isDirectory() && !root.mkdirs()) {
+			IJ.log("FigureJ: could not create the asset store "+root);
+			return null;
+		}
+		return new AssetStore(root);
+	}
+
+	/** @return the file holding the content with this hash, whether it exists or not */
+	public File getFile(String hash, String extension) {
+		return new File(new File(root, hash.substring(0, 2)), hash+extension);
+	}
+
+	/** @return the hash of a file of the store, taken from its name; null for other files */
+	public String getHash(File f) {
+		File dir = f.getParentFile();
+		if(dir == null || !root.equals(dir.getParentFile()))
+			return null;
+		String name = f.getName();
+		int dot = name.indexOf('.');
+		String hash = dot < 0 ? name : name.substring(0, dot);
+		return hash.length() == 40 && hash.startsWith(dir.getName()) ? hash : null;
+	}
+
+	/**
+	 * @param source file to store
+	 * @param hash SHA-1 of the source, @see SourceCopier#hash(File)
+	 * @return the stored file; the source is only copied if the store does not have its content yet
+	 */
+	public File put(File source, String hash) throws IOException {
+		File stored = getFile(hash, extension(source.getName()));
+		if(stored.isFile())
+			return stored;
+		File dir = stored.getParentFile();
+		if(!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+			throw new IOException("could not create "+dir);
+		// another save could store the same content at the same time
+		File temp = File.createTempFile(hash, ".part", dir);
+		try {
+			SourceCopier.transfer(source, temp);
+			if(Prefs.get("figurej.verifyCopies", true) && !SourceCopier.hash(temp).equals(hash))
+				throw new IOException("copy of "+source+" differs from the original");
+			if(!temp.renameTo(stored) && !stored.isFile())
+				throw new IOException("could not rename "+temp);
+		}
+		finally {
+			temp.delete();
+		}
+		stored.setReadOnly();
+		return stored;
+	}
+
+	/**
+	 * makes the stored file available in a figure folder as a hard link or, if that fails, a reference file
+	 * @param stored file of the store
+	 * @param target file the figure refers to
+	 */
+	public void link(File stored, File target) throws IOException {
+		File ref = new File(target.getPath()+refExtension);
+		if(target.exists() && !target.delete())
+			throw new IOException("could not replace "+target);
+		if(ref.exists() && !ref.delete())
+			throw new IOException("could not replace "+ref);
+		if(hardLink(target, stored))
+			return;
+		FileWriter out = new FileWriter(ref);
+		try {
+			out.write(getHash(stored)+"\n"+stored.getAbsolutePath()+"\n");
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/** Files.createLink of java 7, called by reflection to keep running on java 6 */
+	private static boolean hardLink(File link, File existing) {
+		try {
+			Class<?> files = Class.forName("java.nio.file.Files");
+			Class<?> path = Class.forName("java.nio.file.Path");
+			Method toPath = File.class.getMethod("toPath");
+			files.getMethod("createLink", path, path).invoke(null, toPath.invoke(link), toPath.invoke(existing));
+			return true;
+		}
+		catch(Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @param path path of an image of a figure
+	 * @return the path itself if the file exists, otherwise the stored file its reference file points to;
+	 * the path itself if there is neither
+	 */
+	public static String resolve(String path) {
+		if(path == null || new File(path).exists())
+			return path;
+		File ref = new File(path+refExtension);
+		if(!ref.isFile())
+			return path;
+		try {
+			BufferedReader in = new BufferedReader(new FileReader(ref));
+			try {
+				String hash = in.readLine();
+				String stored = in.readLine();
+				if(stored != null && new File(stored).isFile())
+					return stored;
+				// the store was moved: look the hash up in the current one
+				AssetStore store = getDefault();
+				if(hash != null && store != null) {
+					File f = store.getFile(hash.trim(), extension(path));
+					if(f.isFile())
+						return f.getPath();
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch(IOException e) {
+			IJ.log("FigureJ: could not read "+ref);
+		}
+		return path;
+	}
+
+	/** @return true if the figure folder holds the file or a reference to it */
+	public static boolean exists(File f) {
+		return f.exists() || new File(f.getPath()+refExtension).exists();
+	}
+
+	private static String extension(String name) {
+		int dot = name.lastIndexOf('.');
+		return dot > 0 ? name.substring(dot) : "";
+	}
+}
@@ -0,0 +1,229 @@
+package utilities;
+/*
+ * writes an RGB image as tiled BigTIFF, band by band, so that images far larger than the heap
+ * (posters at print resolution) can be saved: only one band of tiles is held in memory.
+ * tiles are optionally deflate compressed (with horizontal differencing), the compression of the
+ * tiles of a band is split among the worker threads. the image is readable by Bio-Formats
+ * (File > Import > Bio-Formats) and most other software supporting BigTIFF.
+ */
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+public class BigTiffWriter {
+
+	/** side length of the tiles, has to be a multiple of 16 */
+	public static final int tileSize = 256;
+
+	private static final int headerSize = 16;
+	private static final int entrySize = 20;
+
+	// tiff field types
+	private static final short SHORT = 3;
+	private static final short LONG = 4;
+	private static final short RATIONAL = 5;
+	private static final short LONG8 = 16;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int width;
+	private final int height;
+	private final boolean compress;
+	private final double dpi;
+	private final int tilesAcross;
+	private final int tilesDown;
+	private final long[] tileOffsets;
+	private final long[] tileByteCounts;
+	private int nextBand = 0;
+
+	/**
+	 * @param path file the image is written to; an existing file is overwritten
+	 * @param width width of the image
+	 * @param height height of the image
+	 * @param compress true to deflate compress the tiles
+	 * @param dpi resolution stored in the file
+	 */
+	public BigTiffWriter(String path, int width, int height, boolean compress, double dpi) throws IOException {
+		this.width = width;
+		this.height = height;
+		this.compress = compress;
+		this.dpi = dpi;
+		tilesAcross = (width+tileSize-1)/tileSize;
+		tilesDown = (height+tileSize-1)/tileSize;
+		tileOffsets = new long[tilesAcross*tilesDown];
+		tileByteCounts = new long[tilesAcross*tilesDown];
+
+		file = new RandomAccessFile(path, "rw");
+		file.setLength(0);
+		channel = file.getChannel();
+		// the offset of the directory is filled in by finish()
+		ByteBuffer header = buffer(headerSize);
+		header.put((byte) 'I').put((byte) 'I').putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(0);
+		write(header, 0);
+	}
+
+	/** @return number of image rows that have to be passed to writeBand at once */
+	public int getBandHeight() {
+		return tileSize;
+	}
+
+	/**
+	 * writes the next row of tiles; bands have to be passed from top to bottom
+	 * @param band RGB pixels of the rows [y, y+getBandHeight()) of the image, width pixels per row;
+	 * rows below the image are ignored
+	 */
+	public void writeBand(final int[] band) throws IOException {
+		if(nextBand >= tilesDown)
+			throw new IllegalStateException("all bands are written");
+		final int rows = Math.min(tileSize, height - nextBand*tileSize);
+		final byte[][] tiles = new byte[tilesAcross][];
+		WorkerPool.run(tilesAcross, WorkerPool.getThreadCount(), new WorkerPool.Stripe() {
+			public void run(int from, int to) {
+				byte[] raw = new byte[tileSize*tileSize*3];
+				for(int t=from; t<to; t++)
+					tiles[t] = encodeTile(band, t*tileSize, rows, raw);
+			}
+		});
+
+		long position = channel.size();
+		for(int t=0; t<tilesAcross; t++) {
+			int index = nextBand*tilesAcross + t;
+			tileOffsets[index] = position;
+			tileByteCounts[index] = tiles[t].length;
+			write(ByteBuffer.wrap(tiles[t]), position);
+			position += tiles[t].length;
+		}
+		nextBand++;
+	}
+
+	/** @return the bytes of the tile starting at column x0; tiles at the border are padded with black */
+	private byte[] encodeTile(int[] band, int x0, int rows, byte[] raw) {
+		int columns = Math.min(tileSize, width - x0);
+		Arrays.fill(raw, (byte) 0);
+		for(int y=0; y<rows; y++) {
+			int src = y*width + x0;
+			int dst = y*tileSize*3;
+			for(int x=0; x<columns; x++) {
+				int c = band[src++];
+				raw[dst++] = (byte) (c>>16);
+				raw[dst++] = (byte) (c>>8);
+				raw[dst++] = (byte) c;
+			}
+		}
+		if(!compress)
+			return raw.clone();
+
+		// horizontal differencing: every sample minus the same sample of the pixel to the left
+		for(int y=0; y<tileSize; y++) {
+			int rowStart = y*tileSize*3;
+			for(int i=rowStart+tileSize*3-1; i>=rowStart+3; i--)
+				raw[i] -= raw[i-3];
+		}
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		try {
+			deflater.setInput(raw);
+			deflater.finish();
+			byte[] out = new byte[raw.length/2 + 64];
+			int length = 0;
+			while(!deflater.finished()) {
+				if(length == out.length)
+					out = Arrays.copyOf(out, out.length*2);
+				length += deflater.deflate(out, length, out.length-length);
+			}
+			return Arrays.copyOf(out, length);
+		}
+		finally {
+			deflater.end();
+		}
+	}
+
+	/** writes the image file directory and closes the file; all bands have to be written before */
+	public void finish() throws IOException {
+		if(nextBand < tilesDown)
+			throw new IllegalStateException("only "+nextBand+" of "+tilesDown+" bands were written");
+		writeDirectory();
+		file.close();
+	}
+
+	/** closes the file without completing it, e.g. after a failed band; it may be called after finish() */
+	public void close() throws IOException {
+		file.close();
+	}
+
+	private void writeDirectory() throws IOException {
+		int nrOfTiles = tileOffsets.length;
+		boolean inline = nrOfTiles == 1;
+		int nrOfEntries = compress ? 15 : 14;
+
+		long ifdOffset = (channel.size()+7)/8*8;
+		long dataOffset = ifdOffset + 8 + nrOfEntries*entrySize + 8;
+		long offsetsOffset = dataOffset;
+		long countsOffset = offsetsOffset + 8L*nrOfTiles;
+
+		// entries have to be sorted by tag
+		ByteBuffer ifd = buffer(8 + nrOfEntries*entrySize + 8);
+		ifd.putLong(nrOfEntries);
+		entry(ifd, 256, LONG, 1, width);							// image width
+		entry(ifd, 257, LONG, 1, height);							// image length
+		entry(ifd, 258, SHORT, 3, 8 | 8L<<16 | 8L<<32);				// bits per sample
+		entry(ifd, 259, SHORT, 1, compress ? 8 : 1);				// compression: deflate or none
+		entry(ifd, 262, SHORT, 1, 2);								// photometric interpretation: RGB
+		entry(ifd, 277, SHORT, 1, 3);								// samples per pixel
+		entry(ifd, 282, RATIONAL, 1, rational(dpi));				// x resolution
+		entry(ifd, 283, RATIONAL, 1, rational(dpi));				// y resolution
+		entry(ifd, 284, SHORT, 1, 1);								// planar configuration: chunky
+		entry(ifd, 296, SHORT, 1, 2);								// resolution unit: inch
+		if(compress)
+			entry(ifd, 317, SHORT, 1, 2);							// predictor: horizontal differencing
+		entry(ifd, 322, LONG, 1, tileSize);							// tile width
+		entry(ifd, 323, LONG, 1, tileSize);							// tile length
+		entry(ifd, 324, LONG8, nrOfTiles, inline ? tileOffsets[0] : offsetsOffset);
+		entry(ifd, 325, LONG8, nrOfTiles, inline ? tileByteCounts[0] : countsOffset);
+		ifd.putLong(0);												// no further image
+		write(ifd, ifdOffset);
+
+		if(!inline) {
+			write(longs(tileOffsets), offsetsOffset);
+			write(longs(tileByteCounts), countsOffset);
+		}
+
+		ByteBuffer header = buffer(8);
+		header.putLong(ifdOffset);
+		write(header, 8);
+	}
+
+	/** values of up to 8 bytes are stored in the entry itself */
+	private static void entry(ByteBuffer ifd, int tag, short type, long count, long value) {
+		ifd.putShort((short) tag).putShort(type).putLong(count).putLong(value);
+	}
+
+	/** @return the resolution as numerator (lower 4 bytes) and denominator (upper 4 bytes) */
+	private static long rational(double value) {
+		long denominator = 1000;
+		long numerator = Math.round(value*denominator) & 0xffffffffL;
+		return numerator | denominator<<32;
+	}
+
+	private static ByteBuffer longs(long[] values) {
+		ByteBuffer b = buffer(8*values.length);
+		for(long v: values)
+			b.putLong(v);
+		return b;
+	}
+
+	private static ByteBuffer buffer(int size) {
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/** writes the whole buffer (from its start if it was filled by put calls) at the position */
+	private void write(ByteBuffer b, long position) throws IOException {
+		if(b.position() > 0)
+			b.flip();
+		while(b.hasRemaining())
+			position += channel.write(b, position);
+	}
+}
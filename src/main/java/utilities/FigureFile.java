@@ -0,0 +1,353 @@
+package utilities;
+/*
+ * reads and writes .figurej files. since version 2 a file holds a small document describing the figure
+ * (settings, panel tree, data sources, labels and scale bars), written by the figure and panel classes
+ * themselves, followed by one compressed chunk of pixels per panel showing an image and an index of
+ * these chunks. the pixels of panels that can be extracted again from their image files are only saved
+ * if the preference figurej.savePixels is true (default); otherwise they are refilled after opening.
+ *
+ * layout: magic "FigureJ\0", int version, int document length, document, pixel chunks,
+ * chunk index (int count; per chunk int leaf number, width, height, long offset, int length),
+ * long offset of the chunk index.
+ *
+ * when a figure is opened, the panels are shown at once with placeholders and their pixels are loaded in
+ * the background (windows.PanelLoadJob), unless the preference figurej.lazyOpen is false.
+ *
+ * a figure is written to a temporary file next to it, which replaces the file only when it is complete: a save
+ * that fails leaves the file as it was.
+ *
+ * files written by older versions (java serialization of the whole figure) are still read;
+ * they are converted to the current version the next time they are saved.
+ */
+import ij.Prefs;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import treeMap.LeafPanel;
+import windows.MainWindow;
+
+public class FigureFile {
+
+	/**
+	 * version of the files written; 3 added the series of the data sources, 4 stores the selected panel
+	 * by its number in the panel tree instead of its number among the leaves
+	 */
+	public static final int version = 4;
+
+	private static final byte[] magic = {'F', 'i', 'g', 'u', 'r', 'e', 'J', 0};
+
+	/** a compressed chunk of panel pixels */
+	private static class Chunk {
+		int leaf;
+		int width;
+		int height;
+		long offset;
+		int length;
+		byte[] data;
+	}
+
+	/** @return true if the file has the current format, false for files written by java serialization */
+	public static boolean isCurrentFormat(String path) throws IOException {
+		byte[] start = new byte[magic.length];
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			if(file.length() < start.length)
+				return false;
+			file.readFully(start);
+			return Arrays.equals(start, magic);
+		}
+		finally {
+			file.close();
+		}
+	}
+
+	/** a chunk read on demand, @see treeMap.LeafPanel#setPendingPixels(Callable) */
+	private static class ChunkLoader implements Callable<int[]> {
+		private final String path;
+		private final Chunk chunk;
+
+		ChunkLoader(String path, Chunk chunk) {
+			this.path = path;
+			this.chunk = chunk;
+		}
+
+		public int[] call() throws IOException {
+			RandomAccessFile file = new RandomAccessFile(path, "r");
+			try {
+				return readChunk(file, chunk);
+			}
+			finally {
+				file.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the figure stored in the file, whatever version wrote it; the window is opened by recover().
+	 * pixels saved in the current format are loaded later if the preference figurej.lazyOpen is true
+	 */
+	public static MainWindow open(String path) throws IOException, ClassNotFoundException {
+		return open(path, Prefs.get("figurej.lazyOpen", true));
+	}
+
+	/** @param lazy true to only attach loaders of the pixels saved in the current format, @see #read(String, boolean) */
+	public static MainWindow open(String path, boolean lazy) throws IOException, ClassNotFoundException {
+		return isCurrentFormat(path) ? read(path, lazy) : readSerialized(path);
+	}
+
+	/** writes the figure and the pixels of its panels */
+	public static void write(MainWindow mainWindow, String path) throws IOException {
+		ByteArrayOutputStream document = new ByteArrayOutputStream();
+		mainWindow.write(new DataOutputStream(document));
+
+		final List<LeafPanel> leaves = mainWindow.getLeaves();
+		// the file written could be the one pending pixels are read from
+		for(LeafPanel leaf: leaves)
+			leaf.loadPendingPixels();
+		List<Integer> saved = new ArrayList<Integer>();
+		boolean savePixels = Prefs.get("figurej.savePixels", true);
+		for(int i=0; i<leaves.size(); i++) {
+			LeafPanel leaf = leaves.get(i);
+			if(leaf.isHasImg() && (savePixels || !leaf.getImgData().canReExtract()))
+				saved.add(i);
+		}
+
+		File target = new File(path).getAbsoluteFile();
+		File temp = File.createTempFile(target.getName()+".", ".part", target.getParentFile());
+		boolean written = false;
+		try {
+			writeFile(temp, document, leaves, saved);
+			written = true;
+		}
+		finally {
+			if(!written)
+				temp.delete();
+		}
+		replace(temp, target);
+	}
+
+	/** renames the file to the target, deleting the target first on systems where renaming does not replace it */
+	private static void replace(File file, File target) throws IOException {
+		if(file.renameTo(target))
+			return;
+		if(!target.delete()) {
+			file.delete();
+			throw new IOException("could not replace "+target);
+		}
+		if(!file.renameTo(target))
+			throw new IOException("could not rename "+file+" to "+target);
+	}
+
+	/** writes the document and the pixels of the saved leaves */
+	private static void writeFile(File file, ByteArrayOutputStream document, final List<LeafPanel> leaves,
+			List<Integer> saved) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1<<16));
+		try {
+			out.write(magic);
+			out.writeInt(version);
+			out.writeInt(document.size());
+			document.writeTo(out);
+			long position = magic.length + 8 + document.size();
+
+			// chunks are compressed in parallel, a few at a time to bound the memory needed
+			List<Chunk> chunks = new ArrayList<Chunk>();
+			int batch = 2*WorkerPool.getThreadCount();
+			for(int first=0; first<saved.size(); first+=batch) {
+				final Chunk[] compressed = new Chunk[Math.min(batch, saved.size()-first)];
+				for(int i=0; i<compressed.length; i++) {
+					Chunk c = new Chunk();
+					c.leaf = saved.get(first+i);
+					c.width = leaves.get(c.leaf).getPixelsWidth();
+					c.height = leaves.get(c.leaf).getPixelsHeight();
+					compressed[i] = c;
+				}
+				WorkerPool.run(compressed.length, compressed.length, new WorkerPool.Stripe() {
+					public void run(int from, int to) {
+						for(int i=from; i<to; i++)
+							compressed[i].data = encode(leaves.get(compressed[i].leaf).getPixelsCopy());
+					}
+				});
+				for(Chunk c: compressed) {
+					c.offset = position;
+					c.length = c.data.length;
+					out.write(c.data);
+					position += c.length;
+					c.data = null;
+					chunks.add(c);
+				}
+			}
+
+			long indexOffset = position;
+			out.writeInt(chunks.size());
+			for(Chunk c: chunks) {
+				out.writeInt(c.leaf);
+				out.writeInt(c.width);
+				out.writeInt(c.height);
+				out.writeLong(c.offset);
+				out.writeInt(c.length);
+			}
+			out.writeLong(indexOffset);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * reads a file of the current format
+	 * @param lazy true to only attach loaders of the pixels to the panels, false to read them now
+	 */
+	public static MainWindow read(String path, boolean lazy) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			file.skipBytes(magic.length);
+			int fileVersion = file.readInt();
+			if(fileVersion > version)
+				throw new IOException(path+" was written by a newer version of FigureJ");
+			byte[] document = new byte[file.readInt()];
+			file.readFully(document);
+			MainWindow mainWindow = MainWindow.read(new DataInputStream(new ByteArrayInputStream(document)), fileVersion);
+
+			List<LeafPanel> leaves = mainWindow.getLeaves();
+			for(Chunk c: readIndex(file)) {
+				if(c.leaf >= leaves.size())
+					continue;
+				LeafPanel leaf = leaves.get(c.leaf);
+				if(lazy) {
+					leaf.setPendingPixels(new ChunkLoader(path, c));
+					// the panel waits for its pixels instead of being refilled from its image
+					leaf.setStale(false);
+				}
+				else
+					leaf.restorePixels(readChunk(file, c), c.width, c.height);
+			}
+			return mainWindow;
+		}
+		finally {
+			file.close();
+		}
+	}
+
+	private static List<Chunk> readIndex(RandomAccessFile file) throws IOException {
+		file.seek(file.length()-8);
+		file.seek(file.readLong());
+		int count = file.readInt();
+		List<Chunk> chunks = new ArrayList<Chunk>(count);
+		for(int i=0; i<count; i++) {
+			Chunk c = new Chunk();
+			c.leaf = file.readInt();
+			c.width = file.readInt();
+			c.height = file.readInt();
+			c.offset = file.readLong();
+			c.length = file.readInt();
+			chunks.add(c);
+		}
+		return chunks;
+	}
+
+	private static int[] readChunk(RandomAccessFile file, Chunk c) throws IOException {
+		byte[] data = new byte[c.length];
+		file.seek(c.offset);
+		file.readFully(data);
+		return decode(data, c.width*c.height);
+	}
+
+	/** reads a file written by java serialization (FigureJ up to version 1) */
+	public static MainWindow readSerialized(String path) throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new FileInputStream(path));
+		try {
+			return (MainWindow) in.readObject();
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/** @return the RGB values of the pixels, deflate compressed */
+	private static byte[] encode(int[] pixels) {
+		byte[] rgb = new byte[3*pixels.length];
+		for(int i=0, j=0; i<pixels.length; i++) {
+			int c = pixels[i];
+			rgb[j++] = (byte) (c>>16);
+			rgb[j++] = (byte) (c>>8);
+			rgb[j++] = (byte) c;
+		}
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(rgb);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(rgb.length/4+64);
+			byte[] buffer = new byte[1<<16];
+			while(!deflater.finished())
+				out.write(buffer, 0, deflater.deflate(buffer));
+			return out.toByteArray();
+		}
+		finally {
+			deflater.end();
+		}
+	}
+
+	/** @return the pixels compressed by encode */
+	private static int[] decode(byte[] data, int nrOfPixels) throws IOException {
+		byte[] rgb = new byte[3*nrOfPixels];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data);
+			int length = 0;
+			while(length < rgb.length && !inflater.finished())
+				length += inflater.inflate(rgb, length, rgb.length-length);
+			if(length < rgb.length)
+				throw new IOException("pixel chunk is truncated");
+		}
+		catch(DataFormatException e) {
+			throw new IOException("pixel chunk is corrupt: "+e.getMessage());
+		}
+		finally {
+			inflater.end();
+		}
+		int[] pixels = new int[nrOfPixels];
+		for(int i=0, j=0; i<nrOfPixels; i++)
+			pixels[i] = (rgb[j++]&0xff)<<16 | (rgb[j++]&0xff)<<8 | (rgb[j++]&0xff);
+		return pixels;
+	}
+
+	/** writes a string of any length (DataOutput.writeUTF is limited to 64 kB), null allowed */
+	public static void writeString(DataOutput out, String s) throws IOException {
+		if(s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/** @return the string written by writeString */
+	public static String readString(DataInput in) throws IOException {
+		int length = in.readInt();
+		if(length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
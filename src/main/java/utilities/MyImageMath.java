@@ -5,89 +5,263 @@ package utilities;
  * (c) IBMP-CNRS
   * class handling the extraction of the image region selected with the ROI tool
  * it has to be rotated if the ROI selection tool was tilted and scaled to the size of the
- * panel that will display the selected pixels
+ * panel that will display the selected pixels; both is done in one pass by the Resampler
  *
  */
+import ij.CompositeImage;
 import ij.ImagePlus;
+import ij.gui.Overlay;
 import ij.gui.Roi;
+import ij.io.FileInfo;
+import ij.plugin.Duplicator;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
 import ij.process.ImageProcessor;
-import imagescience.image.Image;
-import imagescience.transform.Rotate;
-import imagescience.transform.Scale;
 
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 
+import dataSets.DataSourceLoader;
+
 public class MyImageMath {
 
-	public static int[] getPixels(ImagePlus openImage, double[] xVals, double[] yVals, int panelW, int panelH, String interPolation) {
-		double minX 	= Double.MAX_VALUE;
-		double minY 	= Double.MAX_VALUE;
+	// pixels around the ROI's bounding box taken into account by interpolation
+	private static final int interpolationMargin = 8;
 
+	// pixels extracted before, e.g. when a panel is re-opened or resized back
+	private static final PixelCache cache = new PixelCache();
 
-		for(int i=0; i<4; i++) {
-			if(xVals[i]<minX) {
-				minX = xVals[i];
-			}
-			if(yVals[i]<minY) {
-				minY = yVals[i];
-			}
-		}
+	/**
+	 * @return the pixels of the region of openImage inside the (tilted) rectangle xVals/yVals, rotated and
+	 * scaled to panelW x panelH. results are cached as long as the image was read from an unchanged file.
+	 */
+	public static int[] getPixels(ImagePlus openImage, double[] xVals, double[] yVals, int panelW, int panelH, String interPolation) {
+		return prepare(openImage, xVals, yVals, panelW, panelH, interPolation).compute(null);
+	}
 
-		double angle = Math.atan((yVals[3]-yVals[0])/(xVals[3]-xVals[0]))*180/Math.PI;
-		if(xVals[3]<xVals[0])
-			angle += 180;
+	/**
+	 * takes everything needed for getPixels from the image, so that the time consuming part can be
+	 * done later by Extraction.compute() on another thread, even after the image was closed
+	 */
+	public static Extraction prepare(ImagePlus openImage, double[] xVals, double[] yVals, int panelW, int panelH, String interPolation) {
+		return prepare(openImage, xVals, yVals, panelW, panelH, interPolation, null);
+	}
 
-		double smallRoiW = Math.sqrt(Math.pow((xVals[3]-xVals[0]),2)+Math.pow((yVals[3]-yVals[0]),2));
-		double smallRoiH = Math.sqrt(Math.pow((xVals[3]-xVals[2]),2)+Math.pow((yVals[3]-yVals[2]),2));
+	/**
+	 * @param outsideColor RGB color of the parts of the region outside of the image, e.g. after the region was
+	 * enlarged with its panel; null to mirror the image at its borders
+	 * @see #prepare(ImagePlus, double[], double[], int, int, String)
+	 */
+	public static Extraction prepare(ImagePlus openImage, double[] xVals, double[] yVals, int panelW, int panelH, String interPolation, Integer outsideColor) {
+		String key = cacheKey(openImage, xVals, yVals, panelW, panelH, interPolation);
+		if(key != null && outsideColor != null)
+			key += "|outside " + outsideColor;
+		int[] pixels = key == null ? null : cache.get(key);
+		if(pixels != null)
+			return new Extraction(key, pixels, null, null, null, panelW, panelH);
 
 		double[] xRect = xVals.clone();
 		double[] yRect = yVals.clone();
 		Arrays.sort(xRect);
 		Arrays.sort(yRect);
 
-		openImage.getCanvas().setOverlay(null);
-		ImagePlus imp = openImage.flatten();
-		imp.setRoi(new Roi(xRect[0],yRect[0],xRect[xRect.length-1]- xRect[0],yRect[yRect.length-1]- yRect[0]));
-		ImageProcessor ip = imp.getProcessor().crop();
-		imp.setProcessor(ip);
-		imp.updateImage();
-
-		Image isi;
-		if(angle*-1 != 0) {
-			isi = Image.wrap(imp);
-			Rotate rotator = new Rotate();
-			// rotation with the highest quality don't lead to loss of signal correctness or image content (*)
-			isi = rotator.run(isi,angle*-1,0,0, Rotate.BSPLINE5, true, false);
-			imp = isi.imageplus();
+		// only the bounding box of the tilted ROI (plus the pixels the interpolation kernels reach
+		// beyond the ROI borders) is converted to RGB
+		int boxX0 = (int) Math.floor(xRect[0]);
+		int boxY0 = (int) Math.floor(yRect[0]);
+		int boxX1 = (int) Math.ceil(xRect[xRect.length-1]);
+		int boxY1 = (int) Math.ceil(yRect[yRect.length-1]);
+		if(openImage.getCanvas() != null)
+			openImage.getCanvas().setOverlay(null);
+		Rectangle region = new Rectangle(boxX0-interpolationMargin, boxY0-interpolationMargin,
+				boxX1-boxX0+2*interpolationMargin, boxY1-boxY0+2*interpolationMargin)
+				.intersection(new Rectangle(0, 0, openImage.getWidth(), openImage.getHeight()));
+		ImagePlus imp = cropDisplayedRegion(openImage, region);
+
+		double[] regionX = new double[4];
+		double[] regionY = new double[4];
+		for(int i=0; i<4; i++) {
+			regionX[i] = xVals[i] - region.x;
+			regionY[i] = yVals[i] - region.y;
+		}
+		Resampler resampler = new Resampler((int[]) imp.getProcessor().getPixels(), imp.getWidth(), imp.getHeight(), interPolation);
+		if(outsideColor != null)
+			resampler.setOutsideColor(outsideColor);
+		return new Extraction(key, null, resampler, regionX, regionY, panelW, panelH);
+	}
+
+	/** pixels of a ROI, either taken from the cache or still to be resampled from the region around the ROI */
+	public static class Extraction {
+		private final String key;
+		private final int[] cached;
+		private final Resampler resampler;
+		private final double[] xVals;
+		private final double[] yVals;
+		private final int panelW;
+		private final int panelH;
+
+		private Extraction(String key, int[] cached, Resampler resampler, double[] xVals, double[] yVals, int panelW, int panelH) {
+			this.key = key;
+			this.cached = cached;
+			this.resampler = resampler;
+			this.xVals = xVals;
+			this.yVals = yVals;
+			this.panelW = panelW;
+			this.panelH = panelH;
+		}
+
+		/**
+		 * rotation and scaling are done at once by mapping every panel pixel back into the region (*)
+		 * @param monitor gets the progress and may cancel; null for none
+		 * @return the pixels of the panel
+		 * @throws java.util.concurrent.CancellationException if the monitor canceled
+		 */
+		public int[] compute(Resampler.Monitor monitor) {
+			if(cached != null)
+				return cached;
+			resampler.setMonitor(monitor);
+			int[] pixels = resampler.resample(xVals, yVals, panelW, panelH);
+			if(key != null)
+				cache.put(key, pixels);
+			return pixels;
+		}
+	}
+
+	/**
+	 * @return string identifying the source file and its version, the displayed plane and display settings,
+	 * the region and the target size; null if the image does not come unchanged from a file
+	 */
+	private static String cacheKey(ImagePlus imp, double[] xVals, double[] yVals, int panelW, int panelH, String interPolation) {
+		FileInfo fi = imp.getOriginalFileInfo();
+		if(imp.changes || fi == null || fi.fileName == null || fi.directory == null)
+			return null;
+		// annotations are burnt into the pixels, but may be changed without changing the image
+		if(hasVisibleOverlay(imp))
+			return null;
+		File file = new File(fi.directory, fi.fileName);
+		if(!file.exists())
+			return null;
+
+		StringBuilder key = new StringBuilder(file.getAbsolutePath());
+		key.append('|').append(file.lastModified()).append('|').append(file.length());
+		key.append('|').append(imp.getChannel()).append(',').append(imp.getSlice()).append(',').append(imp.getFrame());
+		// series of multi-series files and images holding only a part of the file, @see dataSets.DataSourceLoader
+		Object series = imp.getProperty(DataSourceLoader.seriesProperty);
+		if(series != null)
+			key.append("|series ").append(series);
+		Object region = imp.getProperty(DataSourceLoader.regionProperty);
+		if(region != null)
+			key.append('|').append(region);
+		for(int i=0; i<4; i++)
+			key.append('|').append(xVals[i]).append(',').append(yVals[i]);
+		key.append('|').append(panelW).append('x').append(panelH).append('|').append(interPolation);
+
+		// the pixels are taken from the displayed image: include what changes its appearance
+		if(imp.isComposite()) {
+			CompositeImage ci = (CompositeImage) imp;
+			key.append('|').append(ci.getMode()).append('|').append(Arrays.toString(ci.getActiveChannels()));
+			for(int c=1; c<=ci.getNChannels(); c++) {
+				ImageProcessor cip = ci.getProcessor(c);
+				key.append('|').append(ci.getChannelLut(c).getRGB(255))
+					.append(',').append(cip.getMin()).append(',').append(cip.getMax());
+			}
+		}
+		else {
+			ImageProcessor ip = imp.getProcessor();
+			key.append('|').append(ip.getMin()).append(',').append(ip.getMax())
+				.append('|').append(lutHash(ip.getColorModel()));
+		}
+		return key.toString();
+	}
+
+	private static int lutHash(ColorModel cm) {
+		if(!(cm instanceof IndexColorModel))
+			return 0;
+		IndexColorModel icm = (IndexColorModel) cm;
+		int[] rgbs = new int[icm.getMapSize()];
+		icm.getRGBs(rgbs);
+		return Arrays.hashCode(rgbs);
+	}
+
+	/**
+	 * @param imp image opened with the ROI tool
+	 * @param r region to take over
+	 * @return RGB image of region r of the currently displayed plane, looking like the same region of
+	 * imp.flatten() but without converting the whole image first; composite images keep their channel
+	 * colors, display ranges and active channels
+	 */
+	public static ImagePlus cropDisplayedRegion(ImagePlus imp, Rectangle r) {
+		r = r.intersection(new Rectangle(0, 0, imp.getWidth(), imp.getHeight()));
+		if(imp.isComposite()) {
+			Roi roi = imp.getRoi();
+			imp.setRoi(r);
+			CompositeImage ci = (CompositeImage) imp;
+			ImagePlus region = new Duplicator().run(imp, 1, imp.getNChannels(),
+					imp.getSlice(), imp.getSlice(), imp.getFrame(), imp.getFrame());
+			if(roi != null)
+				imp.setRoi(roi);
+			else
+				imp.deleteRoi();
+			if(region.isComposite()) {
+				CompositeImage regionCI = (CompositeImage) region;
+				regionCI.setMode(ci.getMode());
+				for(int c=1; c<=ci.getNChannels(); c++) {
+					regionCI.setChannelLut(ci.getChannelLut(c), c);
+					regionCI.getProcessor(c).setMinAndMax(ci.getProcessor(c).getMin(), ci.getProcessor(c).getMax());
+				}
+				boolean[] active = regionCI.getActiveChannels();
+				System.arraycopy(ci.getActiveChannels(), 0, active, 0, Math.min(active.length, ci.getActiveChannels().length));
+				regionCI.updateAllChannelsAndDraw();
+			}
+			region.setOverlay(null);
+			return burnOverlay(imp, region.flatten(), r);
+		}
+
+		ImageProcessor ip = imp.getProcessor();
+		ip.setRoi(r);
+		ImageProcessor crop = ip.crop();
+		ip.resetRoi();
+		if(!(crop instanceof ColorProcessor)) {
+			crop.setColorModel(ip.getColorModel());
+			if(!(crop instanceof ByteProcessor))	// 8-bit display ranges are part of the LUT
+				crop.setMinAndMax(ip.getMin(), ip.getMax());
+			crop = crop.convertToRGB();
+		}
+		return burnOverlay(imp, new ImagePlus("", crop), r);
+	}
+
+	private static boolean hasVisibleOverlay(ImagePlus imp) {
+		Overlay overlay = imp.getOverlay();
+		return overlay != null && overlay.size() > 0 && !imp.getHideOverlay();
+	}
+
+	/**
+	 * @param region RGB copy of region r of imp
+	 * @return the region with the overlay elements of imp shown on the current plane burnt in, like imp.flatten() does
+	 */
+	private static ImagePlus burnOverlay(ImagePlus imp, ImagePlus region, Rectangle r) {
+		if(!hasVisibleOverlay(imp))
+			return region;
+		Overlay part = new Overlay();
+		for(Roi roi: imp.getOverlay().toArray()) {
+			int position = roi.getPosition();
+			if(position != 0 && position != imp.getCurrentSlice())
+				continue;
+			Rectangle bounds = roi.getBounds();
+			if(!bounds.intersects(r))
+				continue;
+			Roi moved = (Roi) roi.clone();
+			moved.setLocation(bounds.x-r.x, bounds.y-r.y);
+			part.add(moved);
 		}
-		imp.setRoi(new Roi (imp.getWidth()/2-smallRoiW/2,imp.getHeight()/2-smallRoiH/2,smallRoiW,smallRoiH));
-		ip = imp.getProcessor().crop();
-		imp.setProcessor(ip);
-		imp.updateImage();
-
-		isi = Image.wrap(imp); //(*)
-		final Scale scaler = new Scale();
-		double scaleFactor = panelW/(double)ip.getWidth();
-		int interP = Scale.BSPLINE5;
-		if(interPolation.equals("nearest neighbor"))
-			interP = Scale.NEAREST;
-		else if(interPolation.equals("linear"))
-			interP = Scale.LINEAR;
-		else if(interPolation.equals("cubic convolution"))
-			interP = Scale.CUBIC;
-		else if(interPolation.equals("cubic B-spline"))
-			interP = Scale.BSPLINE3;
-		else if(interPolation.equals("cubic O-MOMS"))
-			interP = Scale.OMOMS3;
-		else if(interPolation.equals("quintic B-spline"))
-			interP = Scale.BSPLINE5;
-
-		isi = scaler.run(isi, scaleFactor, scaleFactor, 1,1,1, interP);
-		imp = isi.imageplus();
-		ip = imp.getProcessor().resize(panelW, panelH);
-
-		return (int[]) ip.getPixels();
+		if(part.size() == 0)
+			return region;
+		region.setOverlay(part);
+		return region.flatten();
 	}
 
 	public static ArrayList<String> getInterpolationTypes() {
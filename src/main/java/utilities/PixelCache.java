@@ -0,0 +1,61 @@
+package utilities;
+/*
+ * least recently used cache of pixel arrays extracted for panels. the size of the cache is limited
+ * by the number of bytes of all stored arrays (preference figurej.pixelCacheMB, 256 MB by default).
+ * arrays are copied on the way in and out, because panels change their pixels in place.
+ */
+import ij.Prefs;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class PixelCache {
+
+	private final long byteBudget;
+	private long bytes = 0;
+	private final LinkedHashMap<String, int[]> entries = new LinkedHashMap<String, int[]>(16, 0.75f, true);
+
+	public PixelCache() {
+		this((long) Prefs.get("figurej.pixelCacheMB", 256) * 1024 * 1024);
+	}
+
+	/** @param byteBudget maximum number of bytes of all cached pixel arrays */
+	public PixelCache(long byteBudget) {
+		this.byteBudget = byteBudget;
+	}
+
+	/** @return a copy of the pixels stored for the key, null if not cached */
+	public synchronized int[] get(String key) {
+		int[] pixels = entries.get(key);
+		return pixels == null ? null : pixels.clone();
+	}
+
+	/** stores a copy of the pixels; evicts the least recently used arrays if the budget is exceeded */
+	public synchronized void put(String key, int[] pixels) {
+		long size = 4L * pixels.length;
+		if (size > byteBudget)
+			return;
+		int[] old = entries.put(key, pixels.clone());
+		if (old != null)
+			bytes -= 4L * old.length;
+		bytes += size;
+
+		Iterator<Map.Entry<String, int[]>> eldest = entries.entrySet().iterator();
+		while (bytes > byteBudget && eldest.hasNext()) {
+			bytes -= 4L * eldest.next().getValue().length;
+			eldest.remove();
+		}
+	}
+
+	/** forget all cached arrays */
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	/** @return number of bytes currently used */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+}
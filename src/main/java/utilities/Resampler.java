@@ -0,0 +1,360 @@
+package utilities;
+/*
+ * resamples a tilted rectangle of an RGB image to the size of a panel in a single pass:
+ * every panel pixel is mapped back through the affine transform given by the ROI corners
+ * and interpolated from the source pixels. the interpolation types are the ones offered by
+ * MyImageMath.getInterpolationTypes(); B-spline and O-MOMS interpolation work on coefficients
+ * computed by a recursive prefilter, so that the original pixel values are interpolated exactly.
+ * image borders are handled by mirroring.
+ * rows of the panel and lines of the prefilter are split among the threads of the WorkerPool;
+ * every pixel is computed the same way by whichever thread, so the result does not depend on
+ * the number of threads.
+ */
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Resampler {
+
+	/** is told about the progress of a resampling and may stop it */
+	public interface Monitor {
+		/** @param done lines of work finished out of total */
+		public void progress(int done, int total);
+		/** @return true if the resampling should be aborted */
+		public boolean isCanceled();
+	}
+
+	private static final int NEAREST 	= 0;
+	private static final int LINEAR 	= 1;
+	private static final int KEYS 		= 2;
+	private static final int BSPLINE3 	= 3;
+	private static final int OMOMS3 	= 4;
+	private static final int BSPLINE5 	= 5;
+
+	// poles of the prefilters
+	private static final double[] bspline3Poles = {Math.sqrt(3.0) - 2.0};
+	private static final double[] omoms3Poles 	= {(Math.sqrt(105.0) - 13.0) / 8.0};
+	private static final double[] bspline5Poles = {
+		Math.sqrt(135.0/2.0 - Math.sqrt(17745.0/4.0)) + Math.sqrt(105.0/4.0) - 13.0/2.0,
+		Math.sqrt(135.0/2.0 + Math.sqrt(17745.0/4.0)) - Math.sqrt(105.0/4.0) - 13.0/2.0};
+	private static final double tolerance = 1e-9;
+	// images with less pixels are not worth being split among threads
+	static final int minParallelArea = 1<<16;
+	// stripes per thread, so that threads finishing early can take over some work
+	private static final int stripesPerThread = 4;
+
+	private final int type;
+	private final int taps;
+	private final int srcW;
+	private final int srcH;
+	private final int[] src;
+	private final double[] poles;
+	// stripes the work is split into, 0 to choose by the size of the image
+	private final int nrOfStripes;
+	// red, green and blue plane; interpolation coefficients for the spline types. computed by the first resampling
+	private float[][] planes;
+
+	private Monitor monitor;
+	// color of positions outside of the source, if they are not mirrored
+	private boolean fillOutside = false;
+	private int outsideColor;
+	private final AtomicInteger linesDone = new AtomicInteger();
+	private int linesTotal;
+
+	/**
+	 * @param src RGB pixels of the region the ROI lies in
+	 * @param srcW width of the region
+	 * @param srcH height of the region
+	 * @param interpolation one of MyImageMath.getInterpolationTypes()
+	 */
+	public Resampler(int[] src, int srcW, int srcH, String interpolation) {
+		this(src, srcW, srcH, interpolation, 0);
+	}
+
+	/** @param nrOfStripes number of stripes the work is split into whatever the size, 1 for the calling thread alone */
+	Resampler(int[] src, int srcW, int srcH, String interpolation, int nrOfStripes) {
+		this.nrOfStripes = nrOfStripes;
+		this.srcW = srcW;
+		this.srcH = srcH;
+		type = typeOf(interpolation);
+		taps = type == NEAREST ? 1 : type == LINEAR ? 2 : type == BSPLINE5 ? 6 : 4;
+		poles = type == BSPLINE3 ? bspline3Poles : type == OMOMS3 ? omoms3Poles : type == BSPLINE5 ? bspline5Poles : null;
+		this.src = src;
+	}
+
+	/** @param rgb color of positions outside of the source pixels instead of mirroring the source at its borders */
+	public void setOutsideColor(int rgb) {
+		fillOutside = true;
+		outsideColor = 0xff000000 | rgb;
+	}
+
+	/** @param monitor gets the progress of the following resamplings; null for none */
+	public void setMonitor(Monitor monitor) {
+		this.monitor = monitor;
+	}
+
+	private void computePlanes() {
+		float[][] planes = new float[3][srcW*srcH];
+		for(int i=0; i<src.length; i++) {
+			int c = src[i];
+			planes[0][i] = (c>>16) & 0xff;
+			planes[1][i] = (c>>8) & 0xff;
+			planes[2][i] = c & 0xff;
+		}
+		if(poles != null)
+			for(float[] plane: planes)
+				prefilter(plane, poles);
+		// only keep complete coefficients, the prefilter may have been canceled
+		this.planes = planes;
+	}
+
+	/** counts a finished line of work, @throws CancellationException if the monitor wants to stop */
+	private void lineDone() {
+		if(monitor == null)
+			return;
+		if(monitor.isCanceled())
+			throw new CancellationException();
+		monitor.progress(linesDone.incrementAndGet(), linesTotal);
+	}
+
+	private static int typeOf(String interpolation) {
+		if(interpolation.equals("nearest neighbor"))
+			return NEAREST;
+		else if(interpolation.equals("linear"))
+			return LINEAR;
+		else if(interpolation.equals("cubic convolution"))
+			return KEYS;
+		else if(interpolation.equals("cubic B-spline"))
+			return BSPLINE3;
+		else if(interpolation.equals("cubic O-MOMS"))
+			return OMOMS3;
+		return BSPLINE5;
+	}
+
+	/**
+	 * @param xVals x coordinates of the ROI corners relative to the region (upper left, lower left, lower right, upper right)
+	 * @param yVals y coordinates of the ROI corners relative to the region
+	 * @param panelW width of the result
+	 * @param panelH height of the result
+	 * @return RGB pixels of the ROI, rotated so that its upper edge is horizontal and scaled to panelW x panelH
+	 * @throws CancellationException if the monitor canceled the resampling
+	 */
+	public int[] resample(final double[] xVals, final double[] yVals, final int panelW, final int panelH) {
+		linesDone.set(0);
+		linesTotal = panelH + (planes == null && poles != null ? 3*(srcW+srcH) : 0);
+		if(planes == null)
+			computePlanes();
+		final int[] result = new int[panelW*panelH];
+		WorkerPool.run(panelH, stripes(panelW, panelH), new WorkerPool.Stripe() {
+			public void run(int from, int to) {
+				resampleRows(result, xVals, yVals, panelW, panelH, from, to);
+			}
+		});
+		return result;
+	}
+
+	/** @return number of stripes an image of w x h pixels is split into */
+	private int stripes(int w, int h) {
+		if(nrOfStripes > 0)
+			return nrOfStripes;
+		return (long) w*h < minParallelArea ? 1 : WorkerPool.getThreadCount()*stripesPerThread;
+	}
+
+	/** fills the rows [fromRow, toRow) of the result */
+	private void resampleRows(int[] result, double[] xVals, double[] yVals, int panelW, int panelH, int fromRow, int toRow) {
+		// source position of the center of result pixel (u, v) is origin + (u+.5)*stepU + (v+.5)*stepV;
+		// pixel centers lie at .5, the interpolation works on pixel indices
+		double stepUX = (xVals[3]-xVals[0]) / panelW;
+		double stepUY = (yVals[3]-yVals[0]) / panelW;
+		double stepVX = (xVals[1]-xVals[0]) / panelH;
+		double stepVY = (yVals[1]-yVals[0]) / panelH;
+		double originX = xVals[0] + (stepUX+stepVX)/2 - 0.5;
+		double originY = yVals[0] + (stepUY+stepVY)/2 - 0.5;
+
+		int[] xIndex = new int[taps];
+		int[] yIndex = new int[taps];
+		double[] xWeight = new double[taps];
+		double[] yWeight = new double[taps];
+		float[] red = planes[0], green = planes[1], blue = planes[2];
+
+		for(int v=fromRow; v<toRow; v++) {
+			int index = v*panelW;
+			for(int u=0; u<panelW; u++) {
+				double x = originX + u*stepUX + v*stepVX;
+				double y = originY + u*stepUY + v*stepVY;
+
+				if(fillOutside && (x < -0.5 || y < -0.5 || x > srcW-0.5 || y > srcH-0.5)) {
+					result[index++] = outsideColor;
+					continue;
+				}
+
+				if(type == NEAREST) {
+					int i = mirror((int) Math.floor(x+0.5), srcW) + mirror((int) Math.floor(y+0.5), srcH)*srcW;
+					result[index++] = rgb(red[i], green[i], blue[i]);
+					continue;
+				}
+
+				weights(x, srcW, xIndex, xWeight);
+				weights(y, srcH, yIndex, yWeight);
+				double r = 0, g = 0, b = 0;
+				for(int j=0; j<taps; j++) {
+					int row = yIndex[j]*srcW;
+					double rowR = 0, rowG = 0, rowB = 0;
+					for(int i=0; i<taps; i++) {
+						int k = row + xIndex[i];
+						rowR += xWeight[i]*red[k];
+						rowG += xWeight[i]*green[k];
+						rowB += xWeight[i]*blue[k];
+					}
+					r += yWeight[j]*rowR;
+					g += yWeight[j]*rowG;
+					b += yWeight[j]*rowB;
+				}
+				result[index++] = rgb(r, g, b);
+			}
+			lineDone();
+		}
+	}
+
+	/** source indices and kernel weights of the taps around position p */
+	private void weights(double p, int n, int[] index, double[] weight) {
+		int first = (int) Math.floor(p) - taps/2 + 1;
+		for(int i=0; i<taps; i++) {
+			index[i] = mirror(first+i, n);
+			weight[i] = kernel(Math.abs(p - (first+i)));
+		}
+	}
+
+	/** @param x distance between the interpolated position and a source pixel, >= 0 */
+	private double kernel(double x) {
+		switch(type) {
+		case LINEAR:
+			return x < 1 ? 1-x : 0;
+		case KEYS:
+			if(x < 1)
+				return (1.5*x - 2.5)*x*x + 1;
+			if(x < 2)
+				return ((-0.5*x + 2.5)*x - 4)*x + 2;
+			return 0;
+		case BSPLINE3:
+			if(x < 1)
+				return (0.5*x - 1)*x*x + 2.0/3.0;
+			if(x < 2) {
+				double t = 2-x;
+				return t*t*t / 6;
+			}
+			return 0;
+		case OMOMS3:
+			if(x < 1)
+				return ((0.5*x - 1)*x + 1.0/14.0)*x + 13.0/21.0;
+			if(x < 2)
+				return ((-x/6 + 1)*x - 85.0/42.0)*x + 29.0/21.0;
+			return 0;
+		default:	// BSPLINE5
+			if(x < 1) {
+				double x2 = x*x;
+				return ((-x/12 + 1.0/4.0)*x2 - 1.0/2.0)*x2 + 11.0/20.0;
+			}
+			if(x < 2)
+				return ((((x/24 - 3.0/8.0)*x + 5.0/4.0)*x - 7.0/4.0)*x + 5.0/8.0)*x + 17.0/40.0;
+			if(x < 3) {
+				double t = 3-x, t2 = t*t;
+				return t2*t2*t / 120;
+			}
+			return 0;
+		}
+	}
+
+	/** @return index i mirrored into [0, n) */
+	private static int mirror(int i, int n) {
+		if(i >= 0 && i < n)
+			return i;
+		if(n == 1)
+			return 0;
+		int period = 2*n - 2;
+		i = Math.abs(i) % period;
+		return i < n ? i : period - i;
+	}
+
+	private static int rgb(double r, double g, double b) {
+		return 0xff000000 | clamp(r)<<16 | clamp(g)<<8 | clamp(b);
+	}
+
+	private static int clamp(double v) {
+		int i = (int) Math.floor(v + 0.5);
+		return i < 0 ? 0 : i > 255 ? 255 : i;
+	}
+
+	/** replaces the pixel values of a plane by interpolation coefficients, rows first, then columns */
+	private void prefilter(final float[] plane, final double[] poles) {
+		WorkerPool.run(srcH, stripes(srcW, srcH), new WorkerPool.Stripe() {
+			public void run(int from, int to) {
+				double[] line = new double[srcW];
+				for(int y=from; y<to; y++) {
+					int offset = y*srcW;
+					for(int x=0; x<srcW; x++)
+						line[x] = plane[offset+x];
+					toCoefficients(line, poles);
+					for(int x=0; x<srcW; x++)
+						plane[offset+x] = (float) line[x];
+					lineDone();
+				}
+			}
+		});
+		WorkerPool.run(srcW, stripes(srcW, srcH), new WorkerPool.Stripe() {
+			public void run(int from, int to) {
+				double[] line = new double[srcH];
+				for(int x=from; x<to; x++) {
+					for(int y=0; y<srcH; y++)
+						line[y] = plane[y*srcW+x];
+					toCoefficients(line, poles);
+					for(int y=0; y<srcH; y++)
+						plane[y*srcW+x] = (float) line[y];
+					lineDone();
+				}
+			}
+		});
+	}
+
+	/** recursive causal and anti-causal filtering of a line for every pole (Unser, Thevenaz) */
+	private static void toCoefficients(double[] c, double[] poles) {
+		int n = c.length;
+		if(n == 1)
+			return;
+		double lambda = 1;
+		for(double z: poles)
+			lambda *= (1-z) * (1-1/z);
+		for(int i=0; i<n; i++)
+			c[i] *= lambda;
+		for(double z: poles) {
+			c[0] = initialCausal(c, z);
+			for(int i=1; i<n; i++)
+				c[i] += z*c[i-1];
+			c[n-1] = (z / (z*z - 1)) * (z*c[n-2] + c[n-1]);
+			for(int i=n-2; i>=0; i--)
+				c[i] = z * (c[i+1] - c[i]);
+		}
+	}
+
+	private static double initialCausal(double[] c, double z) {
+		int n = c.length;
+		int horizon = (int) Math.ceil(Math.log(tolerance) / Math.log(Math.abs(z)));
+		if(horizon < n) {
+			double zn = z, sum = c[0];
+			for(int i=1; i<horizon; i++) {
+				sum += zn*c[i];
+				zn *= z;
+			}
+			return sum;
+		}
+		double zn = z, iz = 1/z;
+		double z2n = Math.pow(z, n-1);
+		double sum = c[0] + z2n*c[n-1];
+		z2n *= z2n*iz;
+		for(int i=1; i<=n-2; i++) {
+			sum += (zn + z2n)*c[i];
+			zn *= z;
+			z2n *= iz;
+		}
+		return sum / (1 - zn*zn);
+	}
+}
@@ -14,25 +14,19 @@ import ij.plugin.frame.RoiManager;
 
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.nio.channels.FileChannel;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Random;
-import java.util.Set;
 
 import windows.MainWindow;
 import dataSets.DataSource;
+import dataSets.SourcePrefetcher;
 
 public class Serializer {
 
 	private final String serFileExtension 	= ".figurej";
-	private String roiFileName 			= "RoiSet.zip";
+	/** overlay of the figure, without labels and scale bars */
+	public static final String roiFileName = "RoiSet.zip";
 	/**@param xPos x position of the window that will be opened
 	 * @param yPos y position of the window opened
 	 * @return the window the figure is drawn on with images, separators, arrows and so on
@@ -48,33 +42,20 @@ public class Serializer {
             return null;
 
 		String fileName = directory+name;
-			// de-serializing of the panel tree and main window
-			FileInputStream  fis = null;
-			ObjectInputStream in = null;
-
+			// reading the panel tree and main window; files of older versions are serialized java objects
 			try {
-				fis = new FileInputStream(fileName);
-				in  = new ObjectInputStream(fis);
-				MainWindow mainWindow = (MainWindow) in.readObject();
-				in.close();
+				MainWindow mainWindow = FigureFile.open(fileName);
 				List<DataSource> list = mainWindow.getDataSources();
-
-				// if folder containing the source images was moved, adapt the file path
-				for(DataSource d: list) {
-
-					if(!d.getFileDirectory().equals("") && !d.getFileDirectory().equals(directory))
-						d.setFileDirectory(directory);
-					if ((d.getFileName()=="")||d.getFileName()==null)
-						d.setFileDirectory("");
-					if ((d.getFileDirectory()=="")||d.getFileDirectory()==null)
-						d.setFileName("");
-				}
+				relocate(list, directory);
 				mainWindow.recover();
 				mainWindow.calibrateImage(mainWindow.getDPI(),"cm");
 
 				// display arrows, scale bars and so on
 				if(new File(directory+roiFileName).exists())
 					mainWindow.readInOldOveray(directory+roiFileName);
+
+				// read the source images in the background, for the ROI tool
+				SourcePrefetcher.prefetch(list);
 				return mainWindow;
 			}
 			catch(IOException e) {
@@ -88,6 +69,22 @@ public class Serializer {
 		return null;
 	}
 
+	/**
+	 * the source images of a saved figure are copied to its folder: if the folder was moved, adapt the file paths
+	 * @param directory folder of the figure file
+	 */
+	public static void relocate(List<DataSource> dataSources, String directory) {
+		for(DataSource d: dataSources) {
+
+			if(!d.getFileDirectory().equals("") && !d.getFileDirectory().equals(directory))
+				d.setFileDirectory(directory);
+			if ((d.getFileName()=="")||d.getFileName()==null)
+				d.setFileDirectory("");
+			if ((d.getFileDirectory()=="")||d.getFileDirectory()==null)
+				d.setFileName("");
+		}
+	}
+
 	/** opens a dialog to select a file name and directory; calls methods to store the result image as tif
 	 * and to serialize the other information */
 	public void serialize(MainWindow mainWindow) {
@@ -119,61 +116,12 @@ public class Serializer {
 		mainW.hideAllLabelsAndScalebars();
 		saveOverlay(mainW.getImagePlus(), nameOfNewDir);
 
-		List<DataSource> list = mainW.getDataSources();
-		Set<String>	filesFound = new HashSet<String>();
-
 		// save copies of all source images to this folder
-		for(DataSource dataSource:list)
-		{
-			String beforeSavePath = dataSource.getFileDirectory();
-			if(dataSource.getFileName() != "" && !dataSource.getFileName().isEmpty())
-			{
-				File source = new File(dataSource.getFileDirectory()+dataSource.getFileName());
-				//if there are files with the same name but stored in different directories, one is renamed
-				//so that both can be stored in the same directory
-				for(String s: filesFound)
-					if(s.endsWith(dataSource.getFileName()) && !s.equals(dataSource.getFileDirectory()+dataSource.getFileName())) {
-						{
-							rename(dataSource);
-						}
-					}
-
-				filesFound.add(dataSource.getFileDirectory()+dataSource.getFileName());
-
-				File duplicate = new File(nameOfNewDir+dataSource.getFileName());
-				try {
-					copyFile(source, duplicate);
-					dataSource.setFileDirectory(nameOfNewDir);
-				}
-				catch (IOException e) {
-					IJ.error("couldn't store "+dataSource.getFileName());
-				}
-			}
-			if(dataSource.getExternalSource() != ""){
-				//String tempDir = System.getProperty("java.io.tmpdir");
-				File source = new File(beforeSavePath+dataSource.getExternalSource());
-				File duplicate = new File(nameOfNewDir+dataSource.getExternalSource());
-				try {
-					// IJ.log(source.toString());
-					// IJ.log(duplicate.toString());
-					copyFile(source, duplicate);
-					dataSource.setFileDirectory(nameOfNewDir);
-				}
-				catch (IOException e) {
-					IJ.error("couldn't store "+dataSource.getExternalSource());
-				}
-			}
+		new SourceCopier(nameOfNewDir).copy(mainW.getDataSources());
 
-		}
-
-		// serialize the panel tree and the main window and store it in the new folder
-		FileOutputStream fos = null;
-		ObjectOutputStream out = null;
+		// store the panel tree and the main window in the new folder
 		try {
-			fos = new FileOutputStream(nameOfNewDir+pureFileName+serFileExtension);
-			out = new ObjectOutputStream(fos);
-			out.writeObject(mainW);
-			out.close();
+			FigureFile.write(mainW, nameOfNewDir+pureFileName+serFileExtension);
 		}
 		catch(IOException ex) {
 			ex.printStackTrace();
@@ -182,16 +130,6 @@ public class Serializer {
 		// store a text file with the image notes in the new folder
 		saveImageNotes(nameOfNewDir, mainW);
 	}
-	/**@param d data source which has an image that should be renamed
-	 * adds an underscore and 2 random letters + a number to the file name of the data source*/
-	private void rename(DataSource d) {
-		Random r = new Random();
-		String name = d.getFileName();
-		String ending = name.substring(name.lastIndexOf("."), name.length());
-		name = name.replace(ending, "");
-		//add three random numbers as chars; 48 is the ASCII value of 0
-		d.setFileName(name+"_"+(char)(r.nextInt(25)+97)+(char)(r.nextInt(10)+48)+(char)(r.nextInt(25)+97)+ending);
-	}
 
 	/**overlay of an image is stored as zip file
 	 * @param resultFigure image of which the overlay has to be stored
@@ -226,35 +164,4 @@ public class Serializer {
 			}
 		}
 	}
-
-	/** http://stackoverflow.com/questions/106770/standard-concise-way-to-copy-a-file-in-java
-	 *
-	 * @param  sourceFile file which's content is going to be copied
-	 * @param  destFile   file the content is copied to
-	 * @throws IOException
-	 * if a file with the same name as destFile exists in the target directory, the method does nothing */
-	private void copyFile(File sourceFile, File destFile) throws IOException {
-		if(!destFile.exists()) {
-			destFile.createNewFile();
-		}
-		else
-			return;
-
-		FileChannel source = null;
-		FileChannel destination = null;
-
-		try {
-			source = new FileInputStream(sourceFile).getChannel();
-			destination = new FileOutputStream(destFile).getChannel();
-			destination.transferFrom(source, 0, source.size());
-		}
-		finally {
-			if(source != null) {
-				source.close();
-			}
-			if(destination != null) {
-				destination.close();
-			}
-		}
-	}
 }
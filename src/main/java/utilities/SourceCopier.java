@@ -0,0 +1,485 @@
+package utilities;
+/*
+ * copies the image files referenced by the data sources of a figure into the figure folder.
+ * files are identified by their content (SHA-1): the same image referenced from different places is
+ * stored once, different images with the same name get the start of their hash appended to the name.
+ * the files are hashed and copied in parallel with FileChannel.transferTo by a few I/O threads of the copier
+ * (preference figurej.copyThreads, 2 by default), not by the WorkerPool, whose threads draw the figure and
+ * resample panels meanwhile. the copies are verified against the hash of the source.
+ * a manifest in the folder remembers size, modification time and hash of every source, so that saving
+ * the figure again only hashes and copies the files that changed since.
+ * if an asset store is set, the folder gets links to the files of the store instead of copies, @see AssetStore.
+ */
+import ij.IJ;
+import ij.Prefs;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import dataSets.DataSource;
+
+public class SourceCopier {
+
+	/** name of the manifest file in the figure folder */
+	public static final String manifestName = "sourceFiles.manifest";
+
+	private static ExecutorService pool;
+
+	private final String dir;
+	// entries of the manifest by the path of their source
+	private final Map<String, Entry> manifest;
+	// manifests of the folders the sources are in, e.g. of the figure a source was copied for
+	private final Map<File, Map<String, Entry>> otherManifests = new HashMap<File, Map<String, Entry>>();
+	private final AssetStore store = AssetStore.getDefault();
+
+	/** what is known about a source file and its copy */
+	static class Entry {
+		String source;
+		// name of the file in the figure, the source may be a file of the asset store
+		String name;
+		long size;
+		long modified;
+		String hash;
+		String target;
+		// copy has to be made by this save
+		boolean copy;
+		// could not be hashed or copied
+		boolean failed;
+
+		String toLine() {
+			return target+"\t"+size+"\t"+modified+"\t"+hash+"\t"+source;
+		}
+
+		static Entry fromLine(String line) {
+			String[] s = line.split("\t", 5);
+			if(s.length < 5)
+				return null;
+			Entry e = new Entry();
+			e.target = s[0];
+			e.size = Long.parseLong(s[1]);
+			e.modified = Long.parseLong(s[2]);
+			e.hash = s[3];
+			e.source = s[4];
+			return e;
+		}
+	}
+
+	/** work done on one source file */
+	private interface Task {
+		public void run(Entry e);
+	}
+
+	private static synchronized ExecutorService getPool() {
+		if(pool == null) {
+			int nrOfThreads = Math.max(1, (int) Prefs.get("figurej.copyThreads", 2));
+			pool = Executors.newFixedThreadPool(nrOfThreads, new ThreadFactory() {
+				private int count = 0;
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "FigureJ copy "+(count++));
+					t.setDaemon(true);	// never keep ImageJ from quitting
+					return t;
+				}
+			});
+		}
+		return pool;
+	}
+
+	/**
+	 * runs the task on every entry on the I/O threads and waits for all of them. if the calling thread is
+	 * interrupted, the entries not started yet are skipped and marked failed; the interrupt flag is set again.
+	 */
+	private static void runAll(List<Entry> entries, final Task task) {
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for(final Entry e: entries)
+			results.add(getPool().submit(new Runnable() {
+				public void run() {
+					task.run(e);
+				}
+			}));
+		boolean interrupted = false;
+		for(int i=0; i<results.size(); i++) {
+			try {
+				results.get(i).get();
+			}
+			catch(InterruptedException ex) {
+				interrupted = true;
+				for(Future<?> f: results)
+					f.cancel(false);
+				i--;
+			}
+			catch(CancellationException ex) {
+				entries.get(i).failed = true;
+			}
+			catch(ExecutionException ex) {
+				entries.get(i).failed = true;
+				IJ.log("FigureJ: "+ex.getCause());
+			}
+		}
+		if(interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/** @param dir figure folder, ending with a file separator */
+	public SourceCopier(String dir) {
+		this.dir = dir;
+		manifest = readManifest(new File(dir));
+	}
+
+	/**
+	 * copies the image files (and external sources) of the data sources into the folder and points
+	 * the data sources to the copies. files that could not be copied are reported and left where they are.
+	 */
+	public void copy(List<DataSource> dataSources) {
+		// every source file once, in the order of the panels
+		Map<String, Entry> sources = new LinkedHashMap<String, Entry>();
+		for(DataSource d: dataSources) {
+			if(d.getFileName() != null && !d.getFileName().equals(""))
+				addSource(sources, d.getFileDirectory(), d.getFileName());
+			if(d.getExternalSource() != null && !d.getExternalSource().equals(""))
+				addSource(sources, d.getFileDirectory(), d.getExternalSource());
+		}
+		List<Entry> entries = new ArrayList<Entry>(sources.values());
+
+		// hash the files that are new or changed since the last save
+		runAll(entries, new Task() {
+			public void run(Entry e) {
+				hashIfChanged(e);
+			}
+		});
+
+		assignTargets(entries);
+
+		runAll(entries, new Task() {
+			public void run(Entry e) {
+				copyIfNeeded(e);
+			}
+		});
+
+		for(DataSource d: dataSources) {
+			boolean stored = false;
+			String beforeSavePath = d.getFileDirectory();
+			if(d.getFileName() != null && !d.getFileName().equals("")) {
+				Entry e = sources.get(sourceKey(beforeSavePath, d.getFileName()));
+				if(!e.failed) {
+					d.setFileName(e.target);
+					stored = true;
+				}
+			}
+			if(d.getExternalSource() != null && !d.getExternalSource().equals("")) {
+				Entry e = sources.get(sourceKey(beforeSavePath, d.getExternalSource()));
+				if(!e.failed) {
+					d.setExternalSource(e.target);
+					stored = true;
+				}
+			}
+			if(stored)
+				d.setFileDirectory(dir);
+		}
+
+		// every file once, however many panels show it
+		StringBuilder failed = new StringBuilder();
+		for(Entry e: entries)
+			if(e.failed)
+				failed.append("\n").append(e.source);
+		if(failed.length() > 0)
+			IJ.error("couldn't store"+failed);
+
+		for(Entry e: entries) {
+			if(e.failed)
+				continue;
+			manifest.put(e.source, e);
+			// the data sources point to the copy from now on, it is not hashed again by the next save
+			File copy = new File(dir+e.target);
+			if(!copy.isFile())
+				continue;
+			Entry self = new Entry();
+			self.source = key(copy);
+			self.size = copy.length();
+			self.modified = copy.lastModified();
+			self.name = e.target;
+			self.hash = e.hash;
+			self.target = e.target;
+			manifest.put(self.source, self);
+		}
+		writeManifest();
+	}
+
+	private static void addSource(Map<String, Entry> sources, String directory, String name) {
+		String key = sourceKey(directory, name);
+		if(sources.containsKey(key))
+			return;
+		Entry e = new Entry();
+		e.source = key;
+		e.name = new File(name).getName();
+		sources.put(key, e);
+	}
+
+	/** @return path of the file a data source reads, resolved through the asset store */
+	private static String sourceKey(String directory, String name) {
+		return key(new File(AssetStore.resolve(directory+name)));
+	}
+
+	private static String key(File f) {
+		try {
+			return f.getCanonicalPath();
+		}
+		catch(IOException e) {
+			return f.getAbsolutePath();
+		}
+	}
+
+	/** takes the hash from the manifest if the source did not change, computes it otherwise */
+	private void hashIfChanged(Entry e) {
+		File f = new File(e.source);
+		if(!f.isFile()) {
+			e.failed = true;
+			return;
+		}
+		e.size = f.length();
+		e.modified = f.lastModified();
+		// files of the asset store are named by their hash
+		if(store != null) {
+			e.hash = store.getHash(f);
+			if(e.hash != null)
+				return;
+		}
+		Entry known = manifest.get(e.source);
+		if(known == null)
+			known = otherManifest(f.getParentFile()).get(e.source);
+		if(known != null && known.size == e.size && known.modified == e.modified) {
+			e.hash = known.hash;
+			return;
+		}
+		try {
+			e.hash = hash(f);
+		}
+		catch(IOException ex) {
+			e.failed = true;
+		}
+	}
+
+	private Map<String, Entry> otherManifest(File folder) {
+		synchronized(otherManifests) {
+			Map<String, Entry> m = otherManifests.get(folder);
+			if(m == null) {
+				m = readManifest(folder);
+				otherManifests.put(folder, m);
+			}
+			return m;
+		}
+	}
+
+	/**
+	 * gives every source the name of its copy: sources with the same content share one copy,
+	 * a copy of the same content already in the folder is reused
+	 */
+	private void assignTargets(List<Entry> entries) {
+		// content already in the folder, by hash, and the names that are taken
+		Map<String, String> stored = new HashMap<String, String>();
+		Map<String, String> taken = new HashMap<String, String>();
+		for(Entry m: manifest.values())
+			if(hasCopy(m)) {
+				stored.put(m.hash, m.target);
+				taken.put(m.target, m.hash);
+			}
+
+		for(Entry e: entries) {
+			if(e.failed)
+				continue;
+			String target = stored.get(e.hash);
+			if(target != null) {
+				e.target = target;
+				// the source could be the copy itself, e.g. when saving to the same folder again
+				e.copy = false;
+				continue;
+			}
+			String name = e.name;
+			if(e.source.equals(key(new File(dir+name)))) {
+				e.target = name;
+				e.copy = false;
+			}
+			else {
+				if(taken.containsKey(name) || AssetStore.exists(new File(dir+name)))
+					name = withHash(name, e.hash);
+				e.target = name;
+				e.copy = !new File(dir+name).exists() || !isCopy(e, new File(dir+name));
+			}
+			stored.put(e.hash, e.target);
+			taken.put(e.target, e.hash);
+		}
+	}
+
+	/** @return true if the folder still has the copy, or the link to the store, made for the manifest entry */
+	private boolean hasCopy(Entry m) {
+		File copy = new File(dir+m.target);
+		if(copy.isFile())
+			return copy.length() == m.size;
+		return new File(copy.getPath()+AssetStore.refExtension).isFile();
+	}
+
+	/** @return true if the file in the folder has the content of the source, e.g. from a save without manifest */
+	private static boolean isCopy(Entry e, File f) {
+		if(f.length() != e.size)
+			return false;
+		try {
+			return hash(f).equals(e.hash);
+		}
+		catch(IOException ex) {
+			return false;
+		}
+	}
+
+	/** @return the name with the start of the hash appended, before the extension */
+	private static String withHash(String name, String hash) {
+		int dot = name.lastIndexOf('.');
+		String suffix = "_"+hash.substring(0, 8);
+		return dot > 0 ? name.substring(0, dot)+suffix+name.substring(dot) : name+suffix;
+	}
+
+	/**
+	 * copies to a temporary file, verifies the copy and renames it;
+	 * with an asset store, the source is stored (if not yet) and linked into the folder
+	 */
+	private void copyIfNeeded(Entry e) {
+		if(e.failed || !e.copy)
+			return;
+		File source = new File(e.source);
+		File target = new File(dir+e.target);
+		File temp = new File(dir+e.target+".part");
+		try {
+			if(store != null) {
+				store.link(store.put(source, e.hash), target);
+				return;
+			}
+			transfer(source, temp);
+			if(Prefs.get("figurej.verifyCopies", true) && !hash(temp).equals(e.hash))
+				throw new IOException("copy of "+e.source+" differs from the original");
+			if(target.exists() && !target.delete())
+				throw new IOException("could not replace "+target);
+			if(!temp.renameTo(target))
+				throw new IOException("could not rename "+temp);
+			new File(target.getPath()+AssetStore.refExtension).delete();
+		}
+		catch(IOException ex) {
+			temp.delete();
+			e.failed = true;
+			IJ.log("FigureJ: "+ex.getMessage());
+		}
+	}
+
+	static void transfer(File sourceFile, File destFile) throws IOException {
+		FileChannel source = null;
+		FileChannel destination = null;
+		try {
+			source = new FileInputStream(sourceFile).getChannel();
+			destination = new FileOutputStream(destFile).getChannel();
+			long size = source.size();
+			long position = 0;
+			// transferTo may copy less than asked for
+			while(position < size)
+				position += source.transferTo(position, size-position, destination);
+		}
+		finally {
+			if(source != null)
+				source.close();
+			if(destination != null)
+				destination.close();
+		}
+	}
+
+	/** @return SHA-1 of the content of the file, as hexadecimal string */
+	public static String hash(File f) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new IOException("SHA-1 not available");
+		}
+		FileChannel channel = new FileInputStream(f).getChannel();
+		try {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(1<<20);
+			while(channel.read(buffer) >= 0) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
+		finally {
+			channel.close();
+		}
+		StringBuilder s = new StringBuilder();
+		for(byte b: digest.digest())
+			s.append(String.format("%02x", b));
+		return s.toString();
+	}
+
+	/** @return entries of the manifest of the folder by the path of their source, empty if there is none */
+	private static Map<String, Entry> readManifest(File folder) {
+		Map<String, Entry> manifest = new HashMap<String, Entry>();
+		File f = new File(folder, manifestName);
+		if(!f.exists())
+			return manifest;
+		try {
+			BufferedReader in = new BufferedReader(new FileReader(f));
+			try {
+				String line;
+				while((line = in.readLine()) != null) {
+					Entry e = Entry.fromLine(line);
+					if(e != null)
+						manifest.put(e.source, e);
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch(IOException e) {
+			manifest.clear();
+		}
+		catch(NumberFormatException e) {
+			manifest.clear();
+		}
+		return manifest;
+	}
+
+	private void writeManifest() {
+		try {
+			BufferedWriter out = new BufferedWriter(new FileWriter(dir+manifestName));
+			try {
+				for(Entry e: manifest.values())
+					if(AssetStore.exists(new File(dir+e.target))) {
+						out.write(e.toLine());
+						out.newLine();
+					}
+			}
+			finally {
+				out.close();
+			}
+		}
+		catch(IOException e) {
+			IJ.log("FigureJ: could not write "+dir+manifestName);
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package utilities;
+/*
+ * pool of worker threads shared by the pixel crunching parts of FigureJ (drawing the figure,
+ * scaling images). work is split into stripes of an index range; every stripe is processed
+ * by one thread, so stripes must not write to the same memory.
+ */
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class WorkerPool {
+
+	private static ExecutorService pool;
+	private static final int nrOfThreads = Runtime.getRuntime().availableProcessors();
+
+	/** work done on a part [from, to) of an index range, e.g. image rows */
+	public interface Stripe {
+		public void run(int from, int to);
+	}
+
+	/** @return number of threads working in parallel */
+	public static int getThreadCount() {
+		return nrOfThreads;
+	}
+
+	private static synchronized ExecutorService getPool() {
+		if(pool == null)
+			pool = Executors.newFixedThreadPool(nrOfThreads, new ThreadFactory() {
+				private int count = 0;
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "FigureJ worker "+(count++));
+					t.setDaemon(true);	// never keep ImageJ from quitting
+					return t;
+				}
+			});
+		return pool;
+	}
+
+	/**
+	 * splits the range [0, length) into stripes, processes them in parallel and waits for all of them
+	 * @param length size of the index range
+	 * @param nrOfStripes number of parts the range is split into; falls back to the calling thread if < 2
+	 * @param stripe work done on every part
+	 * @throws CancellationException if the calling thread was interrupted while waiting; stripes not started
+	 * yet are skipped, the running ones are finished first, so the work is left incomplete but no stripe
+	 * writes anymore when the exception is thrown. the interrupt flag of the thread is set again.
+	 */
+	public static void run(int length, int nrOfStripes, final Stripe stripe) {
+		nrOfStripes = Math.min(nrOfStripes, length);
+		if(nrOfStripes < 2) {
+			stripe.run(0, length);
+			return;
+		}
+
+		final AtomicBoolean canceled = new AtomicBoolean(false);
+		final CountDownLatch finished = new CountDownLatch(nrOfStripes);
+		List<Future<Object>> results = new ArrayList<Future<Object>>();
+		ExecutorService executor = getPool();
+		for(int i=0; i<nrOfStripes; i++) {
+			final int from = (int) ((long) length*i/nrOfStripes);
+			final int to   = (int) ((long) length*(i+1)/nrOfStripes);
+			results.add(executor.submit(new Callable<Object>() {
+				public Object call() {
+					try {
+						if(!canceled.get())
+							stripe.run(from, to);
+					}
+					finally {
+						finished.countDown();
+					}
+					return null;
+				}
+			}));
+		}
+		try {
+			for(Future<Object> result: results)
+				result.get();
+		}
+		catch (InterruptedException e) {
+			canceled.set(true);
+			// running stripes could still write to the memory of the caller
+			boolean done = false;
+			while(!done) {
+				try {
+					finished.await();
+					done = true;
+				}
+				catch (InterruptedException again) {
+				}
+			}
+			Thread.currentThread().interrupt();
+			throw new CancellationException("interrupted");
+		}
+		catch (ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+}
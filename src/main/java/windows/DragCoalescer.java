@@ -0,0 +1,139 @@
+package windows;
+
+import ij.ImagePlus;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.Timer;
+
+/**
+ * collapses mouse drag events so that at most one reshape and redraw of the
+ * figure happens per display frame. drag positions are only stored when they
+ * arrive; a timer applies the latest one after the previous frame is done, so
+ * all events queued in the meantime are merged into a single step.
+ * has to be used on the event dispatch thread only.
+ */
+public class DragCoalescer implements ActionListener {
+
+	/** receives the positions that survived the coalescing */
+	public interface DragTarget {
+		public void dragTo(ImagePlus imp, int x, int y);
+	}
+
+	// 60 frames per second
+	private static final int frameInterval = 1000 / 60;
+
+	private final DragTarget target;
+	private final Timer timer;
+
+	private boolean pending = false;
+	private ImagePlus pendingImp;
+	private int pendingX;
+	private int pendingY;
+	private int lastX = Integer.MIN_VALUE;
+	private int lastY = Integer.MIN_VALUE;
+	private long lastFrame = 0;
+
+	// statistics
+	private long receivedEvents = 0;
+	private long coalescedEvents = 0;
+	private long droppedEvents = 0;
+	private long appliedFrames = 0;
+
+	public DragCoalescer(DragTarget target) {
+		this.target = target;
+		timer = new Timer(frameInterval, this);
+		timer.setRepeats(false);
+	}
+
+	/**
+	 * @param imp
+	 *            image the mouse is dragged on
+	 * @param x
+	 *            image x coordinate of the mouse
+	 * @param y
+	 *            image y coordinate of the mouse
+	 *            remember the position; it is applied with the next frame
+	 *            unless a newer position arrives before
+	 */
+	public void post(ImagePlus imp, int x, int y) {
+		receivedEvents++;
+		if (pending)
+			coalescedEvents++;
+		pending = true;
+		pendingImp = imp;
+		pendingX = x;
+		pendingY = y;
+		if (!timer.isRunning()) {
+			long wait = frameInterval - (System.currentTimeMillis() - lastFrame);
+			timer.setInitialDelay((int) Math.max(0, wait));
+			timer.start();
+		}
+	}
+
+	/** apply a pending position immediately, e.g. when the mouse is released */
+	public void flush() {
+		timer.stop();
+		apply();
+	}
+
+	/** forget the last applied position, called when a new drag starts */
+	public void reset() {
+		timer.stop();
+		pending = false;
+		pendingImp = null;
+		lastX = Integer.MIN_VALUE;
+		lastY = Integer.MIN_VALUE;
+	}
+
+	@Override
+	public void actionPerformed(ActionEvent e) {
+		apply();
+	}
+
+	private void apply() {
+		if (!pending)
+			return;
+		pending = false;
+		ImagePlus imp = pendingImp;
+		pendingImp = null;
+		// nothing moved since the last frame
+		if (pendingX == lastX && pendingY == lastY) {
+			droppedEvents++;
+			return;
+		}
+		lastX = pendingX;
+		lastY = pendingY;
+		appliedFrames++;
+		target.dragTo(imp, pendingX, pendingY);
+		lastFrame = System.currentTimeMillis();
+	}
+
+	/** @return number of drag events posted */
+	public long getReceivedEvents() {
+		return receivedEvents;
+	}
+
+	/** @return number of drag events replaced by a newer one before they were applied */
+	public long getCoalescedEvents() {
+		return coalescedEvents;
+	}
+
+	/** @return number of drag positions skipped because they did not differ from the last applied one */
+	public long getDroppedEvents() {
+		return droppedEvents;
+	}
+
+	/** @return number of reshape and redraw steps done */
+	public long getAppliedFrames() {
+		return appliedFrames;
+	}
+
+	@Override
+	public String toString() {
+		return "drag events: " + receivedEvents + " received, "
+				+ coalescedEvents + " coalesced, " + droppedEvents
+				+ " dropped, " + appliedFrames + " frames drawn";
+	}
+}
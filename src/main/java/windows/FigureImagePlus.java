@@ -0,0 +1,47 @@
+package windows;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+/**
+ * result image of a figure. its "Info" property lists the geometry,
+ * calibration and image file of every panel, one line per panel (read by the
+ * tool macros with getMetadata("info")). the list is not rebuilt by every
+ * draw; draws only mark it as outdated and it is written from the panel tree
+ * the next time the property is read.
+ */
+public class FigureImagePlus extends ImagePlus {
+
+	private static final String info = "Info";
+
+	private final MainWindow mainWindow;
+	private boolean infoValid;
+
+	public FigureImagePlus(String title, ImageProcessor ip,
+			MainWindow mainWindow) {
+		super(title, ip);
+		this.mainWindow = mainWindow;
+	}
+
+	/** the panels changed, the "Info" property is rebuilt when it is read */
+	public synchronized void invalidateInfo() {
+		infoValid = false;
+	}
+
+	@Override
+	public synchronized Object getProperty(String key) {
+		if (info.equals(key) && !infoValid) {
+			super.setProperty(info, mainWindow.getPanelMetadata());
+			infoValid = true;
+		}
+		return super.getProperty(key);
+	}
+
+	/** a value set by others (e.g. setMetadata of a macro) is kept until the panels change */
+	@Override
+	public synchronized void setProperty(String key, Object value) {
+		super.setProperty(key, value);
+		if (info.equals(key))
+			infoValid = true;
+	}
+}
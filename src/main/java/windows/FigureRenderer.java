@@ -0,0 +1,208 @@
+package windows;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import treeMap.LeafPanel;
+import utilities.FigureFile;
+import utilities.MyImageMath;
+import utilities.Serializer;
+import utilities.WorkerPool;
+import dataSets.DataSource;
+import dataSets.DataSourceLoader;
+
+/**
+ * renders saved figures without their window, e.g. to regenerate them after
+ * their source images changed. every panel is extracted again from the region
+ * and image its data source points to, with the recorded pre-processing macro
+ * replayed; panels that can not be extracted keep the pixels saved in the
+ * figure file. the figure is then composited, labels, scale bars and the saved
+ * overlay burnt in, and written like saveImage of the figure does
+ * (FullResolution_name.tif, and a jpeg for figures that fit into memory).
+ * the figures have no window: an image of the whole figure is only made
+ * while a figure that fits into memory is written, tiled exports are
+ * composited band by band.
+ *
+ * several figures are rendered in parallel (preference figurej.batchThreads,
+ * one per processor by default); every figure keeps its own background color.
+ * only the pre-processing macros are run one at a time, @see
+ * dataSets.DataSourceLoader.
+ */
+public class FigureRenderer {
+
+	public static final String figureExtension = ".figurej";
+
+	private final String outputDir;
+
+	/**
+	 * @param outputDir
+	 *            folder the rendered figures are written to; created if it
+	 *            does not exist
+	 */
+	public FigureRenderer(String outputDir) {
+		this.outputDir = outputDir.endsWith(File.separator) ? outputDir
+				: outputDir + File.separator;
+		new File(outputDir).mkdirs();
+	}
+
+	/**
+	 * @param input
+	 *            a figure file or a folder searched for figure files, its
+	 *            subfolders included
+	 * @return the figure files found, sorted by path
+	 */
+	public static List<String> findFigures(File input) {
+		List<String> figures = new ArrayList<String>();
+		if (input.isFile()) {
+			figures.add(input.getPath());
+			return figures;
+		}
+		File[] files = input.listFiles();
+		if (files == null)
+			return figures;
+		Arrays.sort(files);
+		for (File f : files)
+			if (f.isDirectory())
+				figures.addAll(findFigures(f));
+			else if (f.getName().endsWith(figureExtension))
+				figures.add(f.getPath());
+		return figures;
+	}
+
+	/**
+	 * renders the figures in parallel and waits for all of them; figures that
+	 * fail are logged and skipped
+	 *
+	 * @return number of figures written
+	 */
+	public int renderAll(List<String> figureFiles) {
+		int nrOfThreads = Math.max(1, (int) Prefs.get("figurej.batchThreads",
+				WorkerPool.getThreadCount()));
+		// a pool of its own: the panels are resampled on the WorkerPool
+		ExecutorService pool = Executors.newFixedThreadPool(nrOfThreads,
+				new ThreadFactory() {
+					private int count = 0;
+
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "FigureJ render "
+								+ (count++));
+						t.setDaemon(true); // never keep ImageJ from quitting
+						return t;
+					}
+				});
+		List<Future<?>> jobs = new ArrayList<Future<?>>();
+		for (final String figure : figureFiles)
+			jobs.add(pool.submit(new Runnable() {
+				public void run() {
+					try {
+						render(figure);
+					} catch (Exception e) {
+						IJ.log("FigureJ: could not render " + figure + " ("
+								+ e + ")");
+						throw new RuntimeException(e);
+					}
+				}
+			}));
+		int done = 0;
+		try {
+			for (int i = 0; i < jobs.size(); i++) {
+				IJ.showProgress(i, jobs.size());
+				try {
+					jobs.get(i).get();
+					done++;
+				} catch (ExecutionException e) {
+					// logged by the job
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+			IJ.showProgress(1.0);
+		}
+		return done;
+	}
+
+	/**
+	 * renders one figure on the calling thread and writes it to the output
+	 * folder, named after the figure file
+	 */
+	public void render(String figureFile) throws IOException,
+			ClassNotFoundException {
+		File file = new File(figureFile);
+		String directory = file.getAbsoluteFile().getParent() + File.separator;
+		String name = file.getName();
+		if (name.endsWith(figureExtension))
+			name = name.substring(0, name.length() - figureExtension.length());
+
+		// the saved pixels are only read for panels that are not extracted again
+		MainWindow mainWindow = FigureFile.open(figureFile, true);
+		Serializer.relocate(mainWindow.getDataSources(), directory);
+
+		int extracted = 0;
+		List<LeafPanel> leaves = mainWindow.getLeaves();
+		for (LeafPanel leaf : leaves) {
+			if (leaf.isHasImg() && leaf.getImgData().canReExtract()
+					&& extract(leaf))
+				extracted++;
+			else
+				leaf.loadPendingPixels();
+		}
+
+		mainWindow.initHeadless();
+		File overlay = new File(directory + Serializer.roiFileName);
+		if (overlay.isFile())
+			mainWindow.addOverlay(overlay.getPath());
+
+		// composited while writing, no image of the whole figure is kept
+		mainWindow.writeImage(outputDir, name);
+		IJ.log("FigureJ: rendered " + figureFile + " (" + extracted + " of "
+				+ leaves.size() + " panels extracted again)");
+	}
+
+	/**
+	 * fills the panel again from its data source; parts of the region lying
+	 * outside of the image get the background color of the figure
+	 *
+	 * @return false if the image could not be opened or processed
+	 */
+	private static boolean extract(LeafPanel leaf) {
+		DataSource data = leaf.getImgData();
+		double[] xVals = data.getSourceX().clone();
+		double[] yVals = data.getSourceY().clone();
+		ImagePlus imp = DataSourceLoader.open(data, xVals, yVals, leaf.getW(),
+				leaf.getH());
+		if (imp == null) {
+			IJ.log("FigureJ: could not re-open " + data.getFilePath()
+					+ ", the saved pixels are used");
+			return false;
+		}
+		try {
+			leaf.setPixels(MyImageMath.prepare(imp, xVals, yVals,
+					leaf.getW(), leaf.getH(), data.getInterpolation(),
+						leaf.getPanelColor())
+					.compute(null));
+			return true;
+		} catch (RuntimeException e) {
+			IJ.log("FigureJ: could not extract the panel from "
+					+ data.getFileName() + " (" + e + "), the saved pixels"
+					+ " are used");
+			return false;
+		} finally {
+			imp.flush();
+		}
+	}
+}
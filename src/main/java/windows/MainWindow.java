@@ -12,28 +12,46 @@ import ij.Prefs;
 import ij.gui.ImageCanvas;
 import ij.gui.ImageWindow;
 import ij.gui.Overlay;
+import ij.gui.Roi;
 import ij.io.FileSaver;
+import ij.io.RoiDecoder;
 import ij.measure.Calibration;
 import ij.plugin.frame.RoiManager;
 import ij.process.ColorProcessor;
 
+import java.awt.Rectangle;
 import java.awt.event.MouseEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
+import treeMap.Compositor;
 import treeMap.ContainerPanel;
 import treeMap.LeafPanel;
 import treeMap.Panel;
 import treeMap.SeparatorPanel;
+import utilities.BigTiffWriter;
 import dataSets.DataSource;
 
-public class MainWindow extends ImagePlus implements Serializable {
+public class MainWindow extends ImagePlus implements Serializable,
+		DragCoalescer.DragTarget {
 
 	private static final long serialVersionUID = 1L;
 
+	// figures larger than this are saved band by band (tiled BigTIFF, no jpeg)
+	private static final long maxFlatPixels = 1L << 28;
+
 	// figure data
 	private double dpi = 300;
 
@@ -50,6 +68,8 @@ public class MainWindow extends ImagePlus implements Serializable {
 
 	// result image and its pixels
 	private transient ImagePlus resultFigure;
+	// overlay of a figure written without window, which has no result image, @see #initHeadless()
+	private transient Overlay headlessOverlay;
 
 	public ImagePlus getResultFigure() {
 		return resultFigure;
@@ -68,6 +88,12 @@ public class MainWindow extends ImagePlus implements Serializable {
 	private int lastYSnap = -1;
 	private int lastX = -1;
 	private int lastY = -1;
+	// true while separators were dragged but the figure metadata was not refreshed
+	private boolean separatorMoved = false;
+	// merges drag events so that the figure is reshaped at most once per frame
+	private transient DragCoalescer dragCoalescer;
+	// refills resized panels from their data sources
+	private transient RefillScheduler refillScheduler;
 
 	// border width around separators wherein clicks are treated as clicks on
 	// separators (important for tiny or invisible separators)
@@ -98,6 +124,52 @@ public class MainWindow extends ImagePlus implements Serializable {
 
 	}
 
+	/** for figures read from a file, @see #read(DataInput, int) */
+	private MainWindow() {
+	}
+
+	/**
+	 * writes the figure settings and the panel tree in the figure file format;
+	 * the pixels of the panels are not written, @see utilities.FigureFile
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeDouble(dpi);
+		out.writeInt(figureWidth);
+		out.writeInt(figureHeight);
+		out.writeInt(rootPanel.getSeparatorWidth());
+		out.writeInt(rootPanel.getPanelColor());
+		out.writeInt(clickTolerance);
+		// number of the panel in the order the tree is written, -1 for none
+		out.writeInt(rootPanel.getPanels(new ArrayList<Panel>()).indexOf(
+				selectedPanel));
+		rootPanel.write(out);
+	}
+
+	/**
+	 * reads a figure written by write(); the window is opened by recover()
+	 *
+	 * @param version
+	 *            version of the figure file format
+	 */
+	public static MainWindow read(DataInput in, int version) throws IOException {
+		MainWindow mainWindow = new MainWindow();
+		mainWindow.dpi = in.readDouble();
+		mainWindow.figureWidth = in.readInt();
+		mainWindow.figureHeight = in.readInt();
+		int separatorWidth = in.readInt();
+		int panelColor = in.readInt();
+		mainWindow.clickTolerance = in.readInt();
+		int selected = in.readInt();
+		mainWindow.rootPanel = Panel.read(in, version, panelColor);
+		mainWindow.rootPanel.setSeparatorWidth(separatorWidth);
+		// before version 4 the number of the selected leaf was written
+		List<? extends Panel> panels = version >= 4 ? mainWindow.rootPanel
+				.getPanels(new ArrayList<Panel>()) : mainWindow.getLeaves();
+		mainWindow.selectedPanel = selected >= 0 && selected < panels.size() ? panels
+				.get(selected) : mainWindow.getLeaves().get(0);
+		return mainWindow;
+	}
+
 	/**
 	 * @param frameX
 	 *            x position of the frame containing the result image
@@ -110,10 +182,11 @@ public class MainWindow extends ImagePlus implements Serializable {
 //		ImageWindow.centerNextImage(); // gets rid of the image info banner on
 //										// top of the image.
 		ColorProcessor cp = new ColorProcessor(figureWidth, figureHeight);
-		resultFigure = new ImagePlus("FigureJ", cp);
+		resultFigure = new FigureImagePlus("FigureJ", cp, this);
 
 		// start to build the panel tree structure
 		rootPanel = new ContainerPanel(0, 0, figureWidth, figureHeight);
+		rootPanel.setPanelColor(LeafPanel.getColorValue());
 		Panel p = new LeafPanel(0, 0, figureWidth, figureHeight);
 		selectedPanel = p;
 		rootPanel.addChild(p);
@@ -168,15 +241,60 @@ public class MainWindow extends ImagePlus implements Serializable {
 	public void recover() {
 		ImageWindow.centerNextImage(); // gets rid of the image info banner on
 										// top of the image.
-		IJ.newImage("FigureJ", "RGB", figureWidth, figureHeight, 1);
-		resultFigure = IJ.getImage();
-		resultFigure
-				.setProcessor(new ColorProcessor(figureWidth, figureHeight));
+		resultFigure = new FigureImagePlus("FigureJ", new ColorProcessor(
+				figureWidth, figureHeight), this);
+		resultFigure.show();
 		Prefs.set("figure.id", resultFigure.getID());
 		if (resultFigure.getOverlay() == null)
 			resultFigure.setOverlay(new Overlay());
 		rootPanel.draw(resultFigure);
 		showROI();
+
+		// pixels of lazily opened figures
+		PanelLoadJob loader = new PanelLoadJob(this);
+		if (loader.hasWork())
+			loader.start();
+	}
+
+	/**
+	 * prepares a figure read from a file to be written without opening its
+	 * window, e.g. to render it in batch, @see FigureRenderer. no result
+	 * image is allocated: tiled exports are composited band by band, other
+	 * figures into an image made by writeImage.
+	 */
+	public void initHeadless() {
+		resultFigure = null;
+		headlessOverlay = new Overlay();
+	}
+
+	/** @return overlay of the result image, or of the figure without window */
+	private Overlay getFigureOverlay() {
+		return resultFigure != null ? resultFigure.getOverlay()
+				: headlessOverlay;
+	}
+
+	/**
+	 * @return the figure composited into a new image with its overlay, for
+	 *         figures without window that are not exported band by band
+	 */
+	private ImagePlus createHeadlessImage() {
+		ImagePlus imp = new ImagePlus("FigureJ", new ColorProcessor(
+				figureWidth, figureHeight));
+		calibrate(imp, dpi, "cm");
+		imp.setOverlay(headlessOverlay);
+		rootPanel.draw(imp);
+		return imp;
+	}
+
+	/** panels resized by the last changes are filled again from their images */
+	private void scheduleRefills(Panel p) {
+		if (p instanceof LeafPanel) {
+			if (((LeafPanel) p).isStale())
+				getRefillScheduler().schedule((LeafPanel) p);
+			return;
+		}
+		for (Panel child : p.getChildren())
+			scheduleRefills(child);
 	}
 
 	/** @return result figure */
@@ -189,11 +307,112 @@ public class MainWindow extends ImagePlus implements Serializable {
 	 *            saves the file as png
 	 */
 	public void saveImage(String path, String fileName) {
+		try {
+			writeImage(path, fileName);
+		} catch (IOException e) {
+			IJ.error("Could not save " + fileName + "\n" + e.getMessage());
+		}
+	}
+
+	/**
+	 * saves the figure like saveImage, but reports failures to the caller,
+	 * e.g. to render figures in batch
+	 *
+	 * @throws IOException
+	 *             if one of the files could not be written
+	 */
+	public void writeImage(String path, String fileName) throws IOException {
 		System.out.println("saving " + fileName);
-		hideROI();
-		new FileSaver(resultFigure.flatten()).saveAsTiff(path+"FullResolution_"+fileName+".tif");
+		boolean loaded = loadPendingPixels();
+		if (resultFigure != null) {
+			hideROI();
+			if (loaded)
+				draw();
+		}
+		String tiff = path + "FullResolution_" + fileName + ".tif";
+		if (isTiledExport()) {
+			// a flattened copy of the figure would not fit into memory
+			exportTiledTiff(tiff, Prefs.get("figurej.compressExport", true));
+			return;
+		}
+		ImagePlus flat = (resultFigure != null ? resultFigure
+				: createHeadlessImage()).flatten();
+		if (!new FileSaver(flat).saveAsTiff(tiff))
+			throw new IOException("could not write " + tiff);
 		//// new FileSaver(resultFigure.flatten()).saveAsZip(path+"ZIPPED_HIRES_"+fileName+".zip");
-		new FileSaver(resultFigure.flatten()).saveAsJpeg(path+"JpegCompressed_"+fileName+".jpg");
+		String jpeg = path + "JpegCompressed_" + fileName + ".jpg";
+		if (!new FileSaver(flat).saveAsJpeg(jpeg))
+			throw new IOException("could not write " + jpeg);
+	}
+
+	/**
+	 * @return true if saveImage writes the figure band by band to a tiled
+	 *         BigTIFF instead of flattening it
+	 */
+	public boolean isTiledExport() {
+		return Prefs.get("figurej.tiledExport", false)
+				|| (long) figureWidth * figureHeight > maxFlatPixels;
+	}
+
+	/**
+	 * writes the figure, labels and scale bars burnt in, to a tiled BigTIFF.
+	 * the figure is composited band by band from the panels, so the memory
+	 * needed does not depend on the size of the figure. an incomplete file is
+	 * deleted if the export fails.
+	 *
+	 * @param file
+	 *            path of the tiff file
+	 * @param compress
+	 *            true to deflate compress the tiles
+	 */
+	public void exportTiledTiff(String file, boolean compress)
+			throws IOException {
+		int w = figureWidth;
+		int h = figureHeight;
+		Overlay overlay = getFigureOverlay();
+		BigTiffWriter writer = new BigTiffWriter(file, w, h, compress, dpi);
+		boolean finished = false;
+		try {
+			int bandHeight = writer.getBandHeight();
+			int[] band = new int[w * bandHeight];
+			for (int y = 0; y < h; y += bandHeight) {
+				IJ.showProgress(y, h);
+				Rectangle rows = new Rectangle(0, y, w, bandHeight);
+				Arrays.fill(band, 0);
+				Compositor compositor = new Compositor(band, w, h, rows);
+				rootPanel.draw(compositor);
+				compositor.commit();
+				writer.writeBand(drawOverlay(band, w, rows, overlay));
+			}
+			writer.finish();
+			finished = true;
+		} finally {
+			writer.close();
+			if (!finished)
+				new File(file).delete();
+			IJ.showProgress(1.0);
+		}
+	}
+
+	/** @return the band with the overlay elements crossing it burnt in */
+	private int[] drawOverlay(int[] band, int w, Rectangle rows, Overlay overlay) {
+		if (overlay == null)
+			return band;
+		Overlay part = new Overlay();
+		for (Roi roi : overlay.toArray()) {
+			Rectangle r = roi.getBounds();
+			if (!r.intersects(rows))
+				continue;
+			Roi moved = (Roi) roi.clone();
+			moved.setLocation(r.x, r.y - rows.y);
+			part.add(moved);
+		}
+		if (part.size() == 0)
+			return band;
+		ImagePlus imp = new ImagePlus("", new ColorProcessor(w, rows.height,
+				band));
+		imp.setOverlay(part);
+		return (int[]) imp.flatten().getProcessor().getPixels();
 	}
 
 	/** @return the last panel the user clicked on */
@@ -227,6 +446,7 @@ public class MainWindow extends ImagePlus implements Serializable {
 		}
 		selectionPos[0] = canv.offScreenX(e.getX());
 		selectionPos[1] = canv.offScreenY(e.getY());
+		getDragCoalescer().reset();
 
 
 	}
@@ -250,12 +470,20 @@ public class MainWindow extends ImagePlus implements Serializable {
 
 	public void mouseReleased(ImagePlus imp, MouseEvent e) {
 		// IJ.log("release");
+		getDragCoalescer().flush();
 		ImageCanvas canv = imp.getCanvas();
 		Panel releasedPanel = rootPanel.getClicked(canv.offScreenX(e.getX()),
 				canv.offScreenY(e.getY()), getTol());
 		if ((releasedPanel != null) && (releasedPanel != selectedPanel)) {
 			IJ.showStatus("What did you expect?");
 		}
+		// incremental drawing while dragging skips the panel metadata; rebuild it once
+		if (separatorMoved) {
+			separatorMoved = false;
+			draw();
+			if (IJ.debugMode)
+				IJ.log(getDragCoalescer().toString());
+		}
 		showROI();
 	}
 
@@ -286,16 +514,73 @@ public class MainWindow extends ImagePlus implements Serializable {
 		roiManager.runCommand("Show All");
 	}
 
+	/**
+	 * adds the ROIs of a zip file saved with the figure to the overlay of the
+	 * result image, without the ROI manager (e.g. when rendering in batch)
+	 *
+	 * @param path
+	 *            zip file of ROIs, @see utilities.Serializer
+	 */
+	public void addOverlay(String path) throws IOException {
+		ZipInputStream in = new ZipInputStream(new FileInputStream(path));
+		try {
+			byte[] buffer = new byte[8192];
+			ZipEntry entry;
+			while ((entry = in.getNextEntry()) != null) {
+				if (!entry.getName().endsWith(".roi"))
+					continue;
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				int n;
+				while ((n = in.read(buffer)) > 0)
+					bytes.write(buffer, 0, n);
+				Roi roi = RoiDecoder.openFromByteArray(bytes.toByteArray());
+				if (roi != null)
+					getFigureOverlay().add(roi);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return object merging the drag events; gives access to the statistics
+	 *         of dropped and coalesced events
+	 */
+	public DragCoalescer getDragCoalescer() {
+		if (dragCoalescer == null)
+			dragCoalescer = new DragCoalescer(this);
+		return dragCoalescer;
+	}
+
+	/** @return object refilling resized panels once the resizing settled */
+	public RefillScheduler getRefillScheduler() {
+		if (refillScheduler == null)
+			refillScheduler = new RefillScheduler(this);
+		return refillScheduler;
+	}
+
 	public void mouseDragged(ImagePlus imp, MouseEvent e) {
+		// only the latest position is applied, at most once per frame
+		if (selectedPanel.getClass().getName()
+				.contains(SeparatorPanel.class.getName())) {
+			ImageCanvas canv = imp.getCanvas();
+			getDragCoalescer().post(imp, canv.offScreenX(e.getX()),
+					canv.offScreenY(e.getY()));
+		} else {
+			IJ.showStatus("dragging");
+		}
+	}
+
+	/**
+	 * move the selected separator to the given image coordinates and redraw
+	 * the affected part of the figure
+	 */
+	public void dragTo(ImagePlus imp, int x1, int y1) {
 		// move separators
 		// snapping of separators to other separator start, end and middle
 		// points
 		if (selectedPanel.getClass().getName()
 				.contains(SeparatorPanel.class.getName())) {
-			ImageCanvas canv = imp.getCanvas();
-			int x1 = canv.offScreenX(e.getX());
-			int y1 = canv.offScreenY(e.getY());
-
 			int tempY = rootPanel.getClosestY(selectedPanel, Integer.MAX_VALUE);
 			int tempX = rootPanel.getClosestX(selectedPanel, Integer.MAX_VALUE);
 			int yTemp = y1;
@@ -333,14 +618,12 @@ public class MainWindow extends ImagePlus implements Serializable {
 							+ " ";
 			}
 			IJ.showStatus(dimensions + imp.getCalibration().getUnit());
-
-		} else {
-			IJ.showStatus("dragging");
+			separatorMoved = true;
 		}
 
-		resultFigure.setProperty("Info", "");
-		rootPanel.draw(resultFigure);
-		showROI();
+		if (refillScheduler != null)
+			refillScheduler.postpone();
+		drawDirty();
 	}
 
 	/**
@@ -349,9 +632,43 @@ public class MainWindow extends ImagePlus implements Serializable {
 	 */
 	public void draw() {
 		resultFigure.changes = true;
-		resultFigure.setProperty("Info", "");
+		invalidateInfo();
+		rootPanel.clearDirtyRegion();
 		rootPanel.draw(resultFigure);
 		showROI();
+		if (RefillScheduler.isEnabled())
+			scheduleRefills(rootPanel);
+	}
+
+	/**
+	 * redraw only the part of the result image covered by panels that changed
+	 * size or position since the last draw.
+	 */
+	public void drawDirty() {
+		Rectangle dirty = rootPanel.getDirtyRegion();
+		rootPanel.clearDirtyRegion();
+		if (dirty != null) {
+			rootPanel.draw(resultFigure, dirty);
+			invalidateInfo();
+		}
+		showROI();
+	}
+
+	/** the panel metadata of the result image is rebuilt when it is read next */
+	private void invalidateInfo() {
+		if (resultFigure instanceof FigureImagePlus)
+			((FigureImagePlus) resultFigure).invalidateInfo();
+	}
+
+	/**
+	 * @return the "Info" property of the result image: one line per panel,
+	 *         @see treeMap.LeafPanel#getMetadata()
+	 */
+	public String getPanelMetadata() {
+		StringBuilder sb = new StringBuilder();
+		for (LeafPanel leaf : getLeaves())
+			sb.append('\n').append(leaf.getMetadata());
+		return sb.toString();
 	}
 
 	// unused atm
@@ -369,7 +686,11 @@ public class MainWindow extends ImagePlus implements Serializable {
 	 * @param unit
 	 */
 	public void calibrateImage(double resolution, String unit) {
-		Calibration c = resultFigure.getCalibration();
+		calibrate(resultFigure, resolution, unit);
+	}
+
+	private static void calibrate(ImagePlus imp, double resolution, String unit) {
+		Calibration c = imp.getCalibration();
 		c.setXUnit(unit);
 		c.setYUnit(unit);
 		c.setUnit(unit);
@@ -383,7 +704,7 @@ public class MainWindow extends ImagePlus implements Serializable {
 			factor = 1 / resolution;
 		c.pixelWidth = factor;
 		c.pixelHeight = factor;
-		resultFigure.setCalibration(c);
+		imp.setCalibration(c);
 	}
 
 	/** @return dpi of the result image */
@@ -409,6 +730,24 @@ public class MainWindow extends ImagePlus implements Serializable {
 		return list;
 	}
 
+	/**
+	 * loads the pixels of a lazily opened figure that are not loaded yet, on
+	 * the calling thread
+	 *
+	 * @return true if pixels were loaded, so that the figure has to be redrawn
+	 */
+	public boolean loadPendingPixels() {
+		boolean loaded = false;
+		for (LeafPanel leaf : getLeaves())
+			loaded |= leaf.loadPendingPixels();
+		return loaded;
+	}
+
+	/** @return every leaf of the panel tree, in the order of getDataSources() */
+	public List<LeafPanel> getLeaves() {
+		return rootPanel.getLeaves(new ArrayList<LeafPanel>());
+	}
+
 	public void hideROI() {
 		resultFigure.deleteRoi();
 	}
@@ -0,0 +1,153 @@
+package windows;
+
+import ij.IJ;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.SwingWorker;
+
+import treeMap.LeafPanel;
+import utilities.MyImageMath;
+import utilities.Resampler;
+import dataSets.DataSource;
+
+/**
+ * fills a panel with the pixels of a ROI in the background, so that the user
+ * interface stays responsive while slow interpolations run. the progress is
+ * shown in the ImageJ status bar; a job is canceled by pressing escape or by
+ * starting another job for the same panel. several panels can be filled at
+ * the same time. when a job is done, the pixels are passed to the panel and
+ * the figure is redrawn on the event dispatch thread. the data source of the
+ * panel only describes the new region once the pixels are passed: a job that
+ * is canceled, fails or finds the panel resized leaves both unchanged.
+ * jobs have to be started on the event dispatch thread.
+ */
+public class PanelFillJob extends SwingWorker<int[], Void> implements
+		Resampler.Monitor {
+
+	// jobs that are not finished yet, one per panel
+	private static final Map<LeafPanel, PanelFillJob> running = new IdentityHashMap<LeafPanel, PanelFillJob>();
+
+	protected final LeafPanel panel;
+	private final MainWindow mainWindow;
+	private final MyImageMath.Extraction extraction;
+	private final DataSource extracted;
+	private final int panelW;
+	private final int panelH;
+
+	/**
+	 * @param panel
+	 *            panel that gets the pixels
+	 * @param mainWindow
+	 *            figure that is redrawn afterwards
+	 * @param extraction
+	 *            pixels prepared by MyImageMath.prepare for the current
+	 *            size of the panel
+	 * @param extracted
+	 *            data source describing the pixels, taken over by the data
+	 *            source of the panel with the pixels; null to keep it
+	 */
+	public PanelFillJob(LeafPanel panel, MainWindow mainWindow,
+			MyImageMath.Extraction extraction, DataSource extracted) {
+		this.panel = panel;
+		this.mainWindow = mainWindow;
+		this.extraction = extraction;
+		this.extracted = extracted;
+		this.panelW = panel.getW();
+		this.panelH = panel.getH();
+	}
+
+	/**
+	 * for jobs that prepare the extraction themselves in the background
+	 *
+	 * @see #prepare()
+	 */
+	protected PanelFillJob(LeafPanel panel, MainWindow mainWindow) {
+		this(panel, mainWindow, null, null);
+	}
+
+	/**
+	 * called on the worker thread
+	 *
+	 * @return the pixels to compute; null if they can not be computed
+	 */
+	protected MyImageMath.Extraction prepare() {
+		return extraction;
+	}
+
+	/** cancels a running job for the same panel and starts this one */
+	public void start() {
+		PanelFillJob previous = running.put(panel, this);
+		if (previous != null)
+			previous.cancel(false);
+		// the panel gets new pixels, an automatic refill is not needed anymore
+		panel.setStale(false);
+		IJ.resetEscape();
+		IJ.showStatus("filling panel...");
+		execute();
+	}
+
+	/** cancels all running jobs, e.g. when the figure is closed */
+	public static void cancelAll() {
+		for (PanelFillJob job : running.values())
+			job.cancel(false);
+		running.clear();
+	}
+
+	@Override
+	protected int[] doInBackground() {
+		MyImageMath.Extraction prepared = prepare();
+		return prepared == null ? null : prepared.compute(this);
+	}
+
+	public void progress(int done, int total) {
+		setProgress((int) (100L * done / total));
+		IJ.showProgress(done, total);
+	}
+
+	public boolean isCanceled() {
+		if (IJ.escapePressed())
+			cancel(false);
+		return isCancelled();
+	}
+
+	@Override
+	protected void done() {
+		if (running.get(panel) == this)
+			running.remove(panel);
+		IJ.showProgress(1.0);
+		if (isCancelled()) {
+			IJ.showStatus("filling panel canceled.");
+			return;
+		}
+		try {
+			int[] pixels = get();
+			if (pixels == null) {
+				IJ.showStatus("could not fill panel.");
+				return;
+			}
+			if (panel.getW() != panelW || panel.getH() != panelH) {
+				IJ.showStatus("panel was resized while it was filled.");
+				return;
+			}
+			panel.setPixels(pixels);
+			if (extracted != null)
+				panel.getImgData().setExtraction(extracted);
+			mainWindow.draw();
+			IJ.showStatus("done.");
+		} catch (CancellationException e) {
+			IJ.showStatus("filling panel canceled.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof CancellationException)
+				IJ.showStatus("filling panel canceled.");
+			else
+				IJ.error("Could not transform image.\n" + cause.getMessage());
+		}
+	}
+}
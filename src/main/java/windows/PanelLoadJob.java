@@ -0,0 +1,129 @@
+package windows;
+
+import ij.IJ;
+import ij.gui.ImageCanvas;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import javax.swing.SwingWorker;
+
+import treeMap.LeafPanel;
+
+/**
+ * loads the saved pixels of a lazily opened figure in the background, @see
+ * utilities.FigureFile. panels visible in the figure window are loaded first,
+ * the others by their distance to the visible part. every loaded panel is
+ * drawn at once; panels whose pixels could not be loaded are refilled from
+ * their images. one job runs at a time, it has to be started on the event
+ * dispatch thread.
+ */
+public class PanelLoadJob extends SwingWorker<Void, PanelLoadJob.Loaded> {
+
+	private static PanelLoadJob running;
+
+	private final MainWindow mainWindow;
+	private final List<LeafPanel> panels = new ArrayList<LeafPanel>();
+	private final List<Callable<int[]>> loaders = new ArrayList<Callable<int[]>>();
+
+	/** pixels read for a panel */
+	static class Loaded {
+		final LeafPanel panel;
+		final Callable<int[]> loader;
+		final int[] pixels;
+
+		Loaded(LeafPanel panel, Callable<int[]> loader, int[] pixels) {
+			this.panel = panel;
+			this.loader = loader;
+			this.pixels = pixels;
+		}
+	}
+
+	/** collects the panels of the figure that wait for their pixels */
+	public PanelLoadJob(MainWindow mainWindow) {
+		this.mainWindow = mainWindow;
+		for (LeafPanel leaf : mainWindow.getLeaves())
+			if (leaf.getPendingPixels() != null)
+				panels.add(leaf);
+
+		ImageCanvas canvas = mainWindow.getImagePlus().getCanvas();
+		final Rectangle visible = canvas == null ? new Rectangle(0, 0,
+				mainWindow.getImagePlus().getWidth(), mainWindow.getImagePlus()
+						.getHeight()) : canvas.getSrcRect();
+		Collections.sort(panels, new Comparator<LeafPanel>() {
+			public int compare(LeafPanel a, LeafPanel b) {
+				return Double.compare(distance(a, visible), distance(b, visible));
+			}
+		});
+		for (LeafPanel leaf : panels)
+			loaders.add(leaf.getPendingPixels());
+	}
+
+	/** @return 0 for panels overlapping r, otherwise the distance between the panel and r */
+	private static double distance(LeafPanel p, Rectangle r) {
+		int dx = Math.max(0, Math.max(r.x - (p.getX() + p.getW()), p.getX() - (r.x + r.width)));
+		int dy = Math.max(0, Math.max(r.y - (p.getY() + p.getH()), p.getY() - (r.y + r.height)));
+		return Math.hypot(dx, dy);
+	}
+
+	/** @return true if there are panels to load */
+	public boolean hasWork() {
+		return !panels.isEmpty();
+	}
+
+	/** cancels a job loading another figure and starts this one */
+	public void start() {
+		cancelAll();
+		running = this;
+		execute();
+	}
+
+	/** cancels the running job, e.g. when the figure is closed */
+	public static void cancelAll() {
+		if (running != null)
+			running.cancel(false);
+		running = null;
+	}
+
+	@Override
+	protected Void doInBackground() {
+		for (int i = 0; i < panels.size() && !isCancelled(); i++) {
+			int[] pixels = null;
+			try {
+				pixels = loaders.get(i).call();
+			} catch (Exception e) {
+				IJ.log("FigureJ: could not load the pixels of a panel ("
+						+ e.getMessage() + ")");
+			}
+			publish(new Loaded(panels.get(i), loaders.get(i), pixels));
+			IJ.showProgress(i + 1, panels.size());
+		}
+		return null;
+	}
+
+	@Override
+	protected void process(List<Loaded> loaded) {
+		if (isCancelled())
+			return;
+		for (Loaded l : loaded)
+			l.panel.restorePixels(l.loader, l.pixels);
+		mainWindow.drawDirty();
+		IJ.showStatus("loading panels...");
+	}
+
+	@Override
+	protected void done() {
+		if (running == this)
+			running = null;
+		IJ.showProgress(1.0);
+		if (isCancelled())
+			return;
+		// panels that could not be loaded are refilled from their images
+		mainWindow.draw();
+		IJ.showStatus("panels loaded.");
+	}
+}
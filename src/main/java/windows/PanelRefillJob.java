@@ -0,0 +1,48 @@
+package windows;
+
+import ij.IJ;
+import ij.ImagePlus;
+import treeMap.LeafPanel;
+import utilities.MyImageMath;
+import dataSets.DataSource;
+import dataSets.DataSourceLoader;
+
+/**
+ * fills a resized panel again from its data source: the image is re-opened
+ * (only the part needed, if possible) and pre-processed in the background and
+ * the (resized) region stored in the data source is extracted with the
+ * interpolation chosen for the panel.
+ * parts of the region lying outside of the image get the panel color.
+ */
+public class PanelRefillJob extends PanelFillJob {
+
+	private final DataSource data;
+	private final double[] xVals;
+	private final double[] yVals;
+	private final int color;
+
+	public PanelRefillJob(LeafPanel panel, MainWindow mainWindow) {
+		super(panel, mainWindow);
+		data = panel.getImgData();
+		color = panel.getPanelColor();
+		xVals = data.getSourceX().clone();
+		yVals = data.getSourceY().clone();
+	}
+
+	@Override
+	protected MyImageMath.Extraction prepare() {
+		ImagePlus imp = DataSourceLoader.open(data, xVals, yVals, panel.getW(),
+				panel.getH());
+		if (imp == null) {
+			IJ.log("FigureJ: could not re-open " + data.getFilePath()
+					+ " to fill the resized panel");
+			return null;
+		}
+		try {
+			return MyImageMath.prepare(imp, xVals, yVals, panel.getW(),
+					panel.getH(), data.getInterpolation(), color);
+		} finally {
+			imp.flush();
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package windows;
+
+import ij.Prefs;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.Timer;
+
+import treeMap.LeafPanel;
+import treeMap.Panel;
+
+/**
+ * refills resized panels from their data sources once the resizing settled:
+ * panels are collected until no resize happened for a moment, then a
+ * PanelRefillJob is started for each of them. meanwhile the panels show their
+ * old pixels centered, at the same scale the refilled pixels will have.
+ * switched off by setting the preference figurej.refillAfterResize to false.
+ * has to be used on the event dispatch thread only.
+ */
+public class RefillScheduler implements ActionListener {
+
+	// milliseconds without resizes before the panels are refilled
+	private static final int delay = 500;
+
+	private final MainWindow mainWindow;
+	private final Timer timer;
+	private final List<LeafPanel> panels = new ArrayList<LeafPanel>();
+
+	public RefillScheduler(MainWindow mainWindow) {
+		this.mainWindow = mainWindow;
+		timer = new Timer(delay, this);
+		timer.setRepeats(false);
+	}
+
+	/** @return true if resized panels are refilled automatically */
+	public static boolean isEnabled() {
+		return Prefs.get("figurej.refillAfterResize", true);
+	}
+
+	/** refill the panel when the resizing settled */
+	public void schedule(LeafPanel panel) {
+		if (!panels.contains(panel))
+			panels.add(panel);
+		timer.restart();
+	}
+
+	/** the figure is still being changed: wait some more */
+	public void postpone() {
+		if (timer.isRunning())
+			timer.restart();
+	}
+
+	@Override
+	public void actionPerformed(ActionEvent e) {
+		for (LeafPanel panel : panels)
+			// panels could have been filled or removed in the meantime
+			if (panel.isStale() && isInFigure(panel)
+					&& panel.getImgData().canReExtract())
+				new PanelRefillJob(panel, mainWindow).start();
+		panels.clear();
+	}
+
+	/** removed panels keep their parent, so follow the chain up to the root */
+	private boolean isInFigure(Panel panel) {
+		Panel p = panel;
+		while (p.getParent() != null) {
+			if (!p.getParent().getChildren().contains(p))
+				return false;
+			p = p.getParent();
+		}
+		return p == mainWindow.getRootPanel();
+	}
+}
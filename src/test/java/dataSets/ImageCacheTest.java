@@ -0,0 +1,113 @@
+package dataSets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.process.ColorProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/*
+ * images opened for the ROI tool and for refills without a macro are cached as well: whole images read
+ * completely, and the planes of virtual stacks. RGB images take 4 bytes per pixel.
+ */
+public class ImageCacheTest {
+
+	private static final int w = 60;
+	private static final int h = 40;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static int[] randomPixels(long seed) {
+		Random random = new Random(seed);
+		int[] pixels = new int[w * h];
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = random.nextInt() & 0xffffff;
+		return pixels;
+	}
+
+	private static int[] rgb(ImagePlus imp) {
+		int[] pixels = ((int[]) imp.getProcessor().getPixels()).clone();
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] &= 0xffffff;
+		return pixels;
+	}
+
+	private String saveRGB(int[] pixels) {
+		String path = new File(folder.getRoot(), "rgb.tif").getPath();
+		IJ.saveAsTiff(new ImagePlus("rgb", new ColorProcessor(w, h, pixels.clone())), path);
+		return path;
+	}
+
+	@Test
+	public void cachesImagesOpenedForTheROITool() throws Exception {
+		int[] pixels = randomPixels(1);
+		String path = saveRGB(pixels);
+		ImageCache cache = new ImageCache(1 << 20);
+		ImagePlus first = cache.open(path, 0, true);
+		assertEquals("4 bytes per RGB pixel", 4L * w * h, cache.getBytes());
+
+		// other pixels, but the same size and modification time: the image comes from the cache
+		long modified = new File(path).lastModified();
+		saveRGB(randomPixels(5));
+		new File(path).setLastModified(modified);
+		ImagePlus second = cache.open(path, 0, true);
+		assertArrayEquals(pixels, rgb(second));
+		assertNotSame("callers get copies", first.getProcessor().getPixels(), second.getProcessor().getPixels());
+	}
+
+	@Test
+	public void forgetsPartsOfChangedFiles() throws Exception {
+		String path = saveRGB(randomPixels(2));
+		ImageCache cache = new ImageCache(1 << 20);
+		int[] part = randomPixels(3);
+		cache.putPart(path, 1, "plane 2,1", new ImagePlus("part", new ColorProcessor(w, h, part.clone())));
+		assertNull("other series", cache.getPart(path, 0, "plane 2,1"));
+		assertNull("other part", cache.getPart(path, 1, "plane 1,1"));
+		assertArrayEquals(part, rgb(cache.getPart(path, 1, "plane 2,1")));
+
+		new File(path).setLastModified((new File(path).lastModified() / 1000 - 10) * 1000);
+		assertNull(cache.getPart(path, 1, "plane 2,1"));
+	}
+
+	@Test
+	public void keepsThePlaneOfAVirtualStack() throws Exception {
+		// a virtual stack of the files of a folder
+		String directory = folder.getRoot().getPath() + File.separator;
+		VirtualStack stack = new VirtualStack(w, h, null, directory);
+		short[][] slices = new short[3][w * h];
+		Random random = new Random(4);
+		for (int s = 0; s < slices.length; s++) {
+			for (int i = 0; i < slices[s].length; i++)
+				slices[s][i] = (short) random.nextInt(4096);
+			IJ.saveAsTiff(new ImagePlus("", new ShortProcessor(w, h, slices[s], null)), directory + s + ".tif");
+			stack.addSlice(s + ".tif");
+		}
+		String path = directory + "1.tif";
+
+		ImagePlus imp = new ImagePlus("stack", stack);
+		imp.setPosition(1, 2, 1);
+		ImagePlus plane = DataSourceLoader.keepPlane(imp, path, 0);
+		assertNotNull(plane);
+		assertEquals(1, plane.getStackSize());
+		assertArrayEquals(slices[1], (short[]) plane.getProcessor().getPixels());
+
+		ImagePlus cached = ImageCache.getInstance().getPart(path, 0, DataSourceLoader.planePart(2, 1));
+		assertArrayEquals(slices[1], (short[]) cached.getProcessor().getPixels());
+		assertEquals(DataSourceLoader.planePart(2, 1), cached.getProperty(DataSourceLoader.regionProperty));
+		assertNull("images in memory are cached whole", DataSourceLoader.keepPlane(IJ.openImage(path), path, 0));
+		ImageCache.getInstance().clear();
+	}
+}
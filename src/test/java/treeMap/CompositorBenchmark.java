@@ -0,0 +1,149 @@
+package treeMap;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * times full redraws of a print sized figure by the compositor against the draw loops the leaf and
+ * separator panels had before it, copied below. the figure, its image and the pixel arrays of the old
+ * loops are created before timing; labels and scale bars are left out, the figure has none. not run with
+ * the tests, the default 10000 x 10000 figure of 8 x 8 panels needs about 2 GB of heap:
+ * java -Xmx3g -cp target/classes:target/test-classes:ij.jar treeMap.CompositorBenchmark [width height columns rows rounds]
+ */
+public class CompositorBenchmark {
+
+	private static final int separatorColor = 0xffffff;
+
+	/** a panel as drawn before the compositor: position, size and its own pixel array, or null for separators */
+	private static class OldPanel {
+		int xPos, yPos, panelWidth, panelHeight, maxW;
+		int[] myPanelPixels;
+	}
+
+	/** @return a figure of columns x rows leaves, every second one filled with random pixels */
+	private static ContainerPanel createFigure(int w, int h, int columns, int rows) {
+		ContainerPanel root = new ContainerPanel(0, 0, w, h);
+		root.setPanelColor(0x99aabb);
+		LeafPanel first = new LeafPanel(0, 0, w, h);
+		root.addChild(first);
+		first.split(columns, true);
+		for (LeafPanel column : root.getLeaves(new ArrayList<LeafPanel>()))
+			column.split(rows, false);
+		Random random = new Random(1);
+		List<LeafPanel> leaves = root.getLeaves(new ArrayList<LeafPanel>());
+		for (int i = 0; i < leaves.size(); i += 2) {
+			LeafPanel leaf = leaves.get(i);
+			int[] pixels = new int[leaf.getW() * leaf.getH()];
+			for (int j = 0; j < pixels.length; j++)
+				pixels[j] = random.nextInt() & 0xffffff;
+			leaf.setPixels(pixels);
+		}
+		return root;
+	}
+
+	private static List<OldPanel> oldPanels(ContainerPanel root) {
+		List<OldPanel> panels = new ArrayList<OldPanel>();
+		for (Panel p : root.getPanels(new ArrayList<Panel>())) {
+			if (!(p instanceof LeafPanel) && !(p instanceof SeparatorPanel))
+				continue;
+			OldPanel o = new OldPanel();
+			o.xPos = p.getX();
+			o.yPos = p.getY();
+			o.panelWidth = p.getW();
+			o.panelHeight = p.getH();
+			o.maxW = p.getW();
+			if (p instanceof LeafPanel) {
+				LeafPanel leaf = (LeafPanel) p;
+				if (leaf.isHasImg())
+					o.myPanelPixels = leaf.getPixelsCopy();
+				else {
+					o.myPanelPixels = new int[p.getW() * p.getH()];
+					Arrays.fill(o.myPanelPixels, root.getPanelColor());
+				}
+			}
+			panels.add(o);
+		}
+		return panels;
+	}
+
+	/** LeafPanel.draw before the compositor, without labels, scale bars and metadata */
+	private static void drawLeaf(OldPanel p, ImagePlus resImg) {
+		int xPos = p.xPos, yPos = p.yPos, panelWidth = p.panelWidth, panelHeight = p.panelHeight, maxW = p.maxW;
+		int[] myPanelPixels = p.myPanelPixels;
+
+		ImageProcessor imp = resImg.getProcessor();
+		int figHeight = resImg.getHeight();
+		int figWidth  = resImg.getWidth();
+		int[] pixels  = (int[]) imp.getPixels();
+		for(int imgY=yPos; 		imgY < Math.min(figHeight, yPos+panelHeight); imgY++)
+			for(int imgX=xPos; 	imgX < Math.min(figWidth,  xPos+panelWidth);  imgX++)
+			{
+				pixels[imgY*figWidth + imgX] =
+						myPanelPixels[(imgY-yPos)*maxW + imgX-xPos];
+			}
+		imp.setPixels(pixels);
+		resImg.setProcessor(imp);
+	}
+
+	/** SeparatorPanel.draw before the compositor */
+	private static void drawSeparator(OldPanel p, ImagePlus resImg) {
+		int xPos = p.xPos, yPos = p.yPos, panelWidth = p.panelWidth, panelHeight = p.panelHeight;
+		int rgbDefColor = separatorColor;
+
+		ImageProcessor imp = resImg.getProcessor();
+		int figHeight = resImg.getHeight();
+		int figWidth  = resImg.getWidth();
+		int[] pixels  = (int[]) imp.getPixels();
+		for(int imgY=yPos; 		imgY < Math.min(figHeight, yPos+panelHeight); imgY++)
+			for(int imgX=xPos; 	imgX < Math.min(figWidth,  xPos+panelWidth ); imgX++) {
+				pixels[imgY*figWidth + imgX] = rgbDefColor;
+			}
+		imp.setPixels(pixels);
+		resImg.setProcessor(imp);
+	}
+
+	private static void drawOld(List<OldPanel> panels, ImagePlus imp) {
+		for (OldPanel p : panels)
+			if (p.myPanelPixels != null)
+				drawLeaf(p, imp);
+			else
+				drawSeparator(p, imp);
+	}
+
+	public static void main(String[] args) {
+		int w = args.length > 1 ? Integer.parseInt(args[0]) : 10000;
+		int h = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int columns = args.length > 3 ? Integer.parseInt(args[2]) : 8;
+		int rows = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+		int rounds = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+		ContainerPanel root = createFigure(w, h, columns, rows);
+		List<OldPanel> panels = oldPanels(root);
+		ImagePlus imp = CompositorTest.createImage(w, h);
+		ImagePlus old = CompositorTest.createImage(w, h);
+
+		// warm up both, so that the compiled code is timed
+		for (int i = 0; i < 3; i++) {
+			root.draw(imp);
+			drawOld(panels, old);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < rounds; i++)
+			root.draw(imp);
+		double compositor = (System.nanoTime() - start) / 1e6 / rounds;
+		start = System.nanoTime();
+		for (int i = 0; i < rounds; i++)
+			drawOld(panels, old);
+		double loop = (System.nanoTime() - start) / 1e6 / rounds;
+
+		if (!Arrays.equals(CompositorTest.rgb(imp), CompositorTest.rgb(old)))
+			System.out.println("the compositor and the old loops drew different figures");
+		System.out.println(w + " x " + h + ", " + root.getLeaves(new ArrayList<LeafPanel>()).size() + " panels: compositor "
+				+ String.format("%.1f", compositor) + " ms, old draw loops " + String.format("%.1f", loop)
+				+ " ms per redraw");
+	}
+}
@@ -0,0 +1,106 @@
+package treeMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import ij.ImagePlus;
+import ij.gui.Overlay;
+import ij.process.ColorProcessor;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * the compositor has to put every pixel where the pixel by pixel loop of the panels did before it.
+ */
+public class CompositorTest {
+
+	private static final int separatorColor = 0xffffff;
+
+	/** @return a figure split into leaves, every second one filled with random pixels */
+	static ContainerPanel createFigure(int w, int h, long seed) {
+		ContainerPanel root = new ContainerPanel(0, 0, w, h);
+		root.setPanelColor(0x99aabb);
+		LeafPanel first = new LeafPanel(0, 0, w, h);
+		root.addChild(first);
+		first.split(3, true);
+		List<LeafPanel> leaves = root.getLeaves(new ArrayList<LeafPanel>());
+		leaves.get(1).split(2, false);
+		leaves.get(2).split(4, false);
+		Random random = new Random(seed);
+		leaves = root.getLeaves(new ArrayList<LeafPanel>());
+		for (int i = 0; i < leaves.size(); i += 2) {
+			LeafPanel leaf = leaves.get(i);
+			int[] pixels = new int[leaf.getW() * leaf.getH()];
+			for (int j = 0; j < pixels.length; j++)
+				pixels[j] = random.nextInt() & 0xffffff;
+			leaf.setPixels(pixels);
+		}
+		return root;
+	}
+
+	static ImagePlus createImage(int w, int h) {
+		ImagePlus imp = new ImagePlus("figure", new ColorProcessor(w, h));
+		imp.setOverlay(new Overlay());
+		return imp;
+	}
+
+	/** @return the figure drawn pixel by pixel, the way the panels drew themselves before the compositor */
+	static int[] drawPixelByPixel(Panel root, int w, int h) {
+		int[] expected = new int[w * h];
+		for (Panel p : root.getPanels(new ArrayList<Panel>())) {
+			int[] src = null;
+			int color = root.getPanelColor();
+			if (p instanceof SeparatorPanel)
+				color = separatorColor;
+			else if (p instanceof LeafPanel && ((LeafPanel) p).isHasImg())
+				src = ((LeafPanel) p).getPixelsCopy();
+			else if (!(p instanceof LeafPanel))
+				continue;
+			for (int y = p.getY(); y < p.getY() + p.getH(); y++)
+				for (int x = p.getX(); x < p.getX() + p.getW(); x++)
+					expected[y * w + x] = src == null ? color : src[(y - p.getY()) * p.getW() + x - p.getX()];
+		}
+		return expected;
+	}
+
+	static int[] rgb(ImagePlus imp) {
+		int[] pixels = ((int[]) imp.getProcessor().getPixels()).clone();
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] &= 0xffffff;
+		return pixels;
+	}
+
+	@Test
+	public void drawsLikeThePixelLoop() {
+		ContainerPanel root = createFigure(640, 480, 1);
+		ImagePlus imp = createImage(640, 480);
+		root.draw(imp);
+		assertArrayEquals(drawPixelByPixel(root, 640, 480), rgb(imp));
+	}
+
+	@Test
+	public void drawsLargeFiguresInParallelLikeThePixelLoop() {
+		// more pixels than drawn by the calling thread
+		ContainerPanel root = createFigure(2200, 2000, 2);
+		ImagePlus imp = createImage(2200, 2000);
+		root.draw(imp);
+		assertArrayEquals(drawPixelByPixel(root, 2200, 2000), rgb(imp));
+	}
+
+	@Test
+	public void redrawsOnlyTheClip() {
+		ContainerPanel root = createFigure(640, 480, 3);
+		ImagePlus imp = createImage(640, 480);
+		Rectangle clip = new Rectangle(101, 57, 300, 211);
+		root.draw(imp, clip);
+		int[] expected = drawPixelByPixel(root, 640, 480);
+		int[] drawn = rgb(imp);
+		for (int y = 0; y < 480; y++)
+			for (int x = 0; x < 640; x++)
+				assertEquals("pixel " + x + "," + y, clip.contains(x, y) ? expected[y * 640 + x] : 0, drawn[y * 640 + x]);
+	}
+}
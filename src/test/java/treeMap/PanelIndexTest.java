@@ -0,0 +1,108 @@
+package treeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import ij.gui.Overlay;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * hit testing and snapping through the index of the root panel have to answer like visiting every panel.
+ */
+public class PanelIndexTest {
+
+	private static final int w = 1600;
+	private static final int h = 1200;
+
+	/** @return a figure split at random into many leaves */
+	private static ContainerPanel createFigure(Random random, int splits) {
+		ContainerPanel root = new ContainerPanel(0, 0, w, h);
+		root.addChild(new LeafPanel(0, 0, w, h));
+		for (int i = 0; i < splits; i++)
+			splitRandomLeaf(root, random, 2 + random.nextInt(3));
+		return root;
+	}
+
+	/** splits one of the leaves that are large enough */
+	private static void splitRandomLeaf(Panel root, Random random, int nr) {
+		List<LeafPanel> large = new ArrayList<LeafPanel>();
+		for (LeafPanel leaf : root.getLeaves(new ArrayList<LeafPanel>()))
+			if (Math.min(leaf.getW(), leaf.getH()) >= 40 * nr)
+				large.add(leaf);
+		large.get(random.nextInt(large.size())).split(nr, random.nextBoolean());
+	}
+
+	private static LeafPanel randomLeaf(Panel root, Random random) {
+		List<LeafPanel> leaves = root.getLeaves(new ArrayList<LeafPanel>());
+		return leaves.get(random.nextInt(leaves.size()));
+	}
+
+	/** the answers of Panel without the index */
+	private static Panel clickedByTraversal(Panel root, int x, int y, int tol) {
+		Panel clicked = null;
+		for (Panel child : root.getChildren()) {
+			Panel p = child.getClicked(x, y, tol);
+			if (p != null)
+				clicked = p;
+		}
+		return clicked;
+	}
+
+	private static int closestYByTraversal(Panel root, Panel p) {
+		int closest = Integer.MAX_VALUE;
+		for (Panel child : root.getChildren())
+			closest = Math.min(closest, child.getClosestY(p, closest));
+		return closest;
+	}
+
+	private static int closestXByTraversal(Panel root, Panel p) {
+		int closest = Integer.MAX_VALUE;
+		for (Panel child : root.getChildren())
+			closest = Math.min(closest, child.getClosestX(p, closest));
+		return closest;
+	}
+
+	private static void assertIndexAnswersLikeTraversal(ContainerPanel root, Random random) {
+		for (int i = 0; i < 2000; i++) {
+			int x = random.nextInt(w);
+			int y = random.nextInt(h);
+			int tol = random.nextInt(12);
+			assertSame("click at " + x + "," + y + " tolerance " + tol, clickedByTraversal(root, x, y, tol),
+					root.getClicked(x, y, tol));
+		}
+		for (Panel p : root.getPanels(new ArrayList<Panel>())) {
+			assertEquals(closestYByTraversal(root, p), root.getClosestY(p, Integer.MAX_VALUE));
+			assertEquals(closestXByTraversal(root, p), root.getClosestX(p, Integer.MAX_VALUE));
+		}
+	}
+
+	@Test
+	public void answersLikeTheTreeTraversal() {
+		Random random = new Random(1);
+		assertIndexAnswersLikeTraversal(createFigure(random, 40), random);
+	}
+
+	@Test
+	public void followsSplitsMovesAndRemovals() {
+		Random random = new Random(2);
+		ContainerPanel root = createFigure(random, 20);
+		// the index is built by the first query, later changes have to update it
+		assertIndexAnswersLikeTraversal(root, random);
+		for (int round = 0; round < 20; round++) {
+			splitRandomLeaf(root, random, 2);
+			List<Panel> separators = new ArrayList<Panel>();
+			for (Panel p : root.getPanels(new ArrayList<Panel>()))
+				if (p instanceof SeparatorPanel)
+					separators.add(p);
+			SeparatorPanel s = (SeparatorPanel) separators.get(random.nextInt(separators.size()));
+			s.getParent().reShape(s.getX() + random.nextInt(21) - 10, s.getY() + random.nextInt(21) - 10, s);
+			if (round % 3 == 0)
+				randomLeaf(root, random).remove(new Overlay());
+			assertIndexAnswersLikeTraversal(root, random);
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package treeMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import ij.Prefs;
+
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * recenter has to give the pixels of copying the centered part into a new array, whether the memory of the
+ * store is reused or grown, in every storage mode.
+ */
+public class PixelStoreTest {
+
+	private static final int background = 0x99aabb;
+
+	// shrinking, growing, and cropped along one side while growing along the other
+	private static final int[][] sizes = { { 40, 30 }, { 17, 11 }, { 41, 33 }, { 64, 9 }, { 7, 50 }, { 0, 12 },
+			{ 23, 23 }, { 40, 30 } };
+
+	@After
+	public void resetMode() {
+		Prefs.set("figurej.panelStorage", PixelStore.HEAP);
+	}
+
+	private static int[] randomPixels(int w, int h, long seed) {
+		Random random = new Random(seed);
+		int[] pixels = new int[w * h];
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = random.nextInt() & 0xffffff;
+		return pixels;
+	}
+
+	/** @return the pixels centered in a new w x h array, the way the panels resized before the stores */
+	private static int[] recenterByCopy(int[] src, int width, int height, int w, int h) {
+		int[] dst = new int[w * h];
+		int offX = w / 2 - width / 2;
+		int offY = h / 2 - height / 2;
+		for (int y = 0; y < h; y++)
+			for (int x = 0; x < w; x++) {
+				int sx = x - offX;
+				int sy = y - offY;
+				dst[y * w + x] = sx >= 0 && sx < width && sy >= 0 && sy < height ? src[sy * width + sx] : background;
+			}
+		return dst;
+	}
+
+	private static void assertRecentersLikeCopying(String mode) {
+		Prefs.set("figurej.panelStorage", mode);
+		int width = 31, height = 21;
+		int[] expected = randomPixels(width, height, 1);
+		PixelStore store = PixelStore.wrap(expected.clone(), width, height);
+		for (int[] size : sizes) {
+			expected = recenterByCopy(expected, width, height, size[0], size[1]);
+			store = store.recenter(size[0], size[1], background);
+			width = size[0];
+			height = size[1];
+			assertEquals(mode, width, store.getWidth());
+			assertEquals(mode, height, store.getHeight());
+			assertArrayEquals(mode + " " + width + " x " + height, expected, store.toArray());
+		}
+	}
+
+	@Test
+	public void recentersOnTheHeap() {
+		assertRecentersLikeCopying(PixelStore.HEAP);
+	}
+
+	@Test
+	public void recentersInDirectMemory() {
+		assertRecentersLikeCopying(PixelStore.DIRECT);
+	}
+
+	@Test
+	public void recentersInMappedFiles() {
+		assertRecentersLikeCopying(PixelStore.MAPPED);
+	}
+
+	@Test
+	public void recentersViewsOfTheFigure() {
+		// views can not be reused, their pixels are copied out of the figure
+		int[] figure = randomPixels(100, 80, 2);
+		int[] pixels = new int[31 * 21];
+		for (int y = 0; y < 21; y++)
+			System.arraycopy(figure, (y + 13) * 100 + 7, pixels, y * 31, 31);
+		int[] before = figure.clone();
+		PixelStore store = PixelStore.view(figure, 13 * 100 + 7, 100, 31, 21).recenter(40, 17, background);
+		assertArrayEquals(recenterByCopy(pixels, 31, 21, 40, 17), store.toArray());
+		assertArrayEquals("the figure is left alone", before, figure);
+	}
+
+	@Test
+	public void refusesPanelsLargerThanABuffer() {
+		// 2.5 G pixels do not fit into a byte buffer; they must not end up on the heap without notice
+		for (String mode : new String[] { PixelStore.DIRECT, PixelStore.MAPPED }) {
+			Prefs.set("figurej.panelStorage", mode);
+			try {
+				PixelStore.create(50000, 50000);
+				fail(mode);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+}
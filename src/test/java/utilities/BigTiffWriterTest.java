@@ -0,0 +1,231 @@
+package utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/*
+ * reads the files of the tiled export back: header, directory entries in tag order, tile offsets and
+ * byte counts, and the pixels of the tiles with and without compression.
+ */
+public class BigTiffWriterTest {
+
+	private static final int tile = BigTiffWriter.tileSize;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/** type, count and value (or offset of the values) of a directory entry */
+	private static class Entry {
+		int type;
+		long count;
+		long value;
+	}
+
+	private static int[] randomPixels(int w, int h, long seed) {
+		Random random = new Random(seed);
+		int[] pixels = new int[w * h];
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = random.nextInt() & 0xffffff;
+		return pixels;
+	}
+
+	private File write(int[] pixels, int w, int h, boolean compress) throws IOException {
+		File file = folder.newFile();
+		BigTiffWriter writer = new BigTiffWriter(file.getPath(), w, h, compress, 300);
+		try {
+			int[] band = new int[w * writer.getBandHeight()];
+			for (int y = 0; y < h; y += writer.getBandHeight()) {
+				int rows = Math.min(writer.getBandHeight(), h - y);
+				System.arraycopy(pixels, y * w, band, 0, rows * w);
+				writer.writeBand(band);
+			}
+			writer.finish();
+		} finally {
+			writer.close();
+		}
+		return file;
+	}
+
+	private static ByteBuffer read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			byte[] bytes = new byte[(int) raf.length()];
+			raf.readFully(bytes);
+			return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/** @return the entries of the only directory by tag, checking the header on the way */
+	private static Map<Integer, Entry> readDirectory(ByteBuffer b) {
+		assertEquals('I', b.get(0));
+		assertEquals('I', b.get(1));
+		assertEquals("BigTIFF version", 43, b.getShort(2));
+		assertEquals("offset size", 8, b.getShort(4));
+		assertEquals(0, b.getShort(6));
+		long ifd = b.getLong(8);
+		assertEquals("directory on a word boundary", 0, ifd % 8);
+		int nrOfEntries = (int) b.getLong((int) ifd);
+		Map<Integer, Entry> entries = new LinkedHashMap<Integer, Entry>();
+		int previous = -1;
+		for (int i = 0; i < nrOfEntries; i++) {
+			int position = (int) ifd + 8 + 20 * i;
+			int tag = b.getShort(position) & 0xffff;
+			assertTrue("tag " + tag + " after " + previous, tag > previous);
+			previous = tag;
+			Entry e = new Entry();
+			e.type = b.getShort(position + 2);
+			e.count = b.getLong(position + 4);
+			e.value = b.getLong(position + 12);
+			entries.put(tag, e);
+		}
+		assertEquals("no further image", 0, b.getLong((int) ifd + 8 + 20 * nrOfEntries));
+		return entries;
+	}
+
+	private static void assertEntry(Map<Integer, Entry> entries, int tag, int type, long count, long value) {
+		Entry e = entries.get(tag);
+		assertEquals("type of " + tag, type, e.type);
+		assertEquals("count of " + tag, count, e.count);
+		assertEquals("value of " + tag, value, e.value);
+	}
+
+	private static long[] readArray(ByteBuffer b, Entry e) {
+		long[] values = new long[(int) e.count];
+		if (e.count == 1)
+			values[0] = e.value;
+		else
+			for (int i = 0; i < values.length; i++)
+				values[i] = b.getLong((int) e.value + 8 * i);
+		return values;
+	}
+
+	/** @return the samples of the tile, differencing undone for compressed files */
+	private static byte[] readTile(ByteBuffer b, long offset, long byteCount, boolean compressed)
+			throws DataFormatException {
+		byte[] stored = new byte[(int) byteCount];
+		ByteBuffer d = b.duplicate();
+		d.position((int) offset);
+		d.get(stored);
+		if (!compressed)
+			return stored;
+		byte[] raw = new byte[tile * tile * 3];
+		Inflater inflater = new Inflater();
+		inflater.setInput(stored);
+		assertEquals(raw.length, inflater.inflate(raw));
+		assertTrue(inflater.finished());
+		inflater.end();
+		for (int y = 0; y < tile; y++)
+			for (int i = y * tile * 3 + 3; i < (y + 1) * tile * 3; i++)
+				raw[i] += raw[i - 3];
+		return raw;
+	}
+
+	private static void assertTiles(ByteBuffer b, Map<Integer, Entry> entries, int[] pixels, int w, int h,
+			boolean compressed) throws DataFormatException {
+		int across = (w + tile - 1) / tile;
+		int down = (h + tile - 1) / tile;
+		long[] offsets = readArray(b, entries.get(324));
+		long[] counts = readArray(b, entries.get(325));
+		assertEquals(across * down, offsets.length);
+		for (int t = 0; t < offsets.length; t++) {
+			assertTrue("tile " + t + " in the file", offsets[t] >= 16 && offsets[t] + counts[t] <= b.limit());
+			if (!compressed)
+				assertEquals(tile * tile * 3, counts[t]);
+			byte[] raw = readTile(b, offsets[t], counts[t], compressed);
+			int x0 = (t % across) * tile;
+			int y0 = (t / across) * tile;
+			for (int y = 0; y < tile; y++)
+				for (int x = 0; x < tile; x++) {
+					// tiles at the border are padded with black
+					int c = x0 + x < w && y0 + y < h ? pixels[(y0 + y) * w + x0 + x] : 0;
+					int i = (y * tile + x) * 3;
+					int stored = (raw[i] & 0xff) << 16 | (raw[i + 1] & 0xff) << 8 | raw[i + 2] & 0xff;
+					assertEquals("tile " + t + " pixel " + x + "," + y, c, stored);
+				}
+		}
+	}
+
+	private static void assertImageEntries(Map<Integer, Entry> entries, int w, int h, boolean compressed) {
+		assertEquals(compressed ? 15 : 14, entries.size());
+		assertEntry(entries, 256, 4, 1, w);
+		assertEntry(entries, 257, 4, 1, h);
+		assertEntry(entries, 258, 3, 3, 8 | 8L << 16 | 8L << 32);
+		assertEntry(entries, 259, 3, 1, compressed ? 8 : 1);
+		assertEntry(entries, 262, 3, 1, 2);
+		assertEntry(entries, 277, 3, 1, 3);
+		assertEntry(entries, 282, 5, 1, 300000 | 1000L << 32);
+		assertEntry(entries, 283, 5, 1, 300000 | 1000L << 32);
+		assertEntry(entries, 284, 3, 1, 1);
+		assertEntry(entries, 296, 3, 1, 2);
+		if (compressed)
+			assertEntry(entries, 317, 3, 1, 2);
+		assertEntry(entries, 322, 4, 1, tile);
+		assertEntry(entries, 323, 4, 1, tile);
+		assertEquals(16, entries.get(324).type);
+		assertEquals(16, entries.get(325).type);
+	}
+
+	@Test
+	public void writesUncompressedTiles() throws Exception {
+		int w = 2 * tile + 37, h = tile + 5;
+		int[] pixels = randomPixels(w, h, 1);
+		ByteBuffer b = read(write(pixels, w, h, false));
+		Map<Integer, Entry> entries = readDirectory(b);
+		assertImageEntries(entries, w, h, false);
+		assertTiles(b, entries, pixels, w, h, false);
+	}
+
+	@Test
+	public void writesCompressedTiles() throws Exception {
+		int w = tile + 100, h = 2 * tile + 1;
+		int[] pixels = randomPixels(w, h, 2);
+		ByteBuffer b = read(write(pixels, w, h, true));
+		Map<Integer, Entry> entries = readDirectory(b);
+		assertImageEntries(entries, w, h, true);
+		assertTiles(b, entries, pixels, w, h, true);
+	}
+
+	@Test
+	public void storesTheOffsetOfASingleTileInItsEntry() throws Exception {
+		int[] pixels = randomPixels(100, 60, 3);
+		ByteBuffer b = read(write(pixels, 100, 60, true));
+		Map<Integer, Entry> entries = readDirectory(b);
+		assertEquals(1, entries.get(324).count);
+		assertEquals(1, entries.get(325).count);
+		assertTiles(b, entries, pixels, 100, 60, true);
+	}
+
+	@Test
+	public void doesNotFinishWithBandsMissing() throws IOException {
+		File file = folder.newFile();
+		BigTiffWriter writer = new BigTiffWriter(file.getPath(), 300, 300, true, 300);
+		try {
+			writer.writeBand(new int[300 * writer.getBandHeight()]);
+			writer.finish();
+			fail("finished with one of two bands");
+		} catch (IllegalStateException e) {
+			// expected
+		} finally {
+			writer.close();
+		}
+		assertEquals("no directory written", 0, read(file).getLong(8));
+	}
+}
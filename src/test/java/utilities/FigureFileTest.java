@@ -0,0 +1,192 @@
+package utilities;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import treeMap.ContainerPanel;
+import treeMap.LeafPanel;
+import treeMap.Panel;
+import treeMap.SeparatorPanel;
+import windows.MainWindow;
+import dataSets.DataSource;
+
+/*
+ * figures have to come back from their files as they were saved: the panel tree with its data sources,
+ * the selected panel and background color, and the pixels of the panels, whether they are read at once
+ * or on demand. files written by java serialization (version 1) are read and saved in the current format.
+ */
+public class FigureFileTest {
+
+	private static final int w = 900;
+	private static final int h = 600;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/** @return a figure split into leaves, every second one showing an image, with the panel selected */
+	private static MainWindow createFigure(int selected, int version) throws IOException {
+		ContainerPanel root = new ContainerPanel(0, 0, w, h);
+		root.setPanelColor(0x336699);
+		root.setSeparatorWidth(6);
+		LeafPanel first = new LeafPanel(0, 0, w, h);
+		root.addChild(first);
+		first.split(3, true);
+		root.getLeaves(new ArrayList<LeafPanel>()).get(1).split(2, false);
+
+		Random random = new Random(1);
+		List<LeafPanel> leaves = root.getLeaves(new ArrayList<LeafPanel>());
+		for (int i = 0; i < leaves.size(); i += 2) {
+			LeafPanel leaf = leaves.get(i);
+			int[] pixels = new int[leaf.getW() * leaf.getH()];
+			for (int j = 0; j < pixels.length; j++)
+				pixels[j] = random.nextInt() & 0xffffff;
+			leaf.setPixels(pixels);
+			DataSource d = leaf.getImgData();
+			d.setFileDirectory("/images/");
+			d.setFileName("cells" + i + ".lif");
+			d.setSeries(i + 1);
+			d.setCoords(new double[] { 1, 1, 50.5, 50.5 }, new double[] { 2, 40, 40, 2 });
+			d.setMacro("run(\"Smooth\");\n");
+			d.setNotes("panel " + i + " \u00e9");
+			d.setActiveChannels(new boolean[] { true, false, true });
+			d.setInterpolation("linear");
+		}
+
+		// the document MainWindow.write() produces, the window itself can not be opened without a display
+		ByteArrayOutputStream document = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(document);
+		out.writeDouble(300);
+		out.writeInt(w);
+		out.writeInt(h);
+		out.writeInt(root.getSeparatorWidth());
+		out.writeInt(root.getPanelColor());
+		out.writeInt(10);
+		out.writeInt(selected);
+		root.write(out);
+		return MainWindow.read(new DataInputStream(new ByteArrayInputStream(document.toByteArray())), version);
+	}
+
+	private static byte[] document(MainWindow figure) throws IOException {
+		ByteArrayOutputStream document = new ByteArrayOutputStream();
+		figure.write(new DataOutputStream(document));
+		return document.toByteArray();
+	}
+
+	private static int indexOfSeparator(MainWindow figure) {
+		List<Panel> panels = figure.getRootPanel().getPanels(new ArrayList<Panel>());
+		for (int i = 0; i < panels.size(); i++)
+			if (panels.get(i) instanceof SeparatorPanel)
+				return i;
+		return -1;
+	}
+
+	/** compares the documents (tree, data sources, selection, settings) and the pixels of the leaves */
+	private static void assertSameFigure(MainWindow expected, MainWindow actual) throws IOException {
+		assertArrayEquals(document(expected), document(actual));
+		assertEquals(expected.getRootPanel().getPanelColor(), actual.getRootPanel().getPanelColor());
+		List<LeafPanel> e = expected.getLeaves();
+		List<LeafPanel> a = actual.getLeaves();
+		assertEquals(e.size(), a.size());
+		for (int i = 0; i < e.size(); i++) {
+			a.get(i).loadPendingPixels();
+			assertEquals("leaf " + i, e.get(i).isHasImg(), a.get(i).isHasImg());
+			if (e.get(i).isHasImg())
+				assertArrayEquals("leaf " + i, rgb(e.get(i).getPixelsCopy()), rgb(a.get(i).getPixelsCopy()));
+		}
+	}
+
+	private static int[] rgb(int[] pixels) {
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] &= 0xffffff;
+		return pixels;
+	}
+
+	private MainWindow saveAndOpen(MainWindow figure, boolean lazy) throws Exception {
+		String path = folder.newFile().getPath();
+		FigureFile.write(figure, path);
+		assertTrue(FigureFile.isCurrentFormat(path));
+		return FigureFile.open(path, lazy);
+	}
+
+	@Test
+	public void readsWhatItWrote() throws Exception {
+		MainWindow figure = createFigure(2, FigureFile.version);
+		MainWindow read = saveAndOpen(figure, false);
+		assertSameFigure(figure, read);
+		assertEquals(3, read.getLeaves().get(2).getImgData().getSeries());
+		assertEquals(0x336699, read.getRootPanel().getPanelColor());
+	}
+
+	@Test
+	public void loadsThePixelsOnDemand() throws Exception {
+		MainWindow figure = createFigure(2, FigureFile.version);
+		MainWindow read = saveAndOpen(figure, true);
+		assertTrue(read.getLeaves().get(0).getPendingPixels() != null);
+		assertFalse("waits for its pixels instead of being refilled", read.getLeaves().get(0).isStale());
+		assertSameFigure(figure, read);
+	}
+
+	@Test
+	public void keepsASelectedSeparator() throws Exception {
+		MainWindow figure = createFigure(indexOfSeparator(createFigure(0, FigureFile.version)), FigureFile.version);
+		assertTrue(figure.getSelectedPanel() instanceof SeparatorPanel);
+		MainWindow read = saveAndOpen(figure, false);
+		Panel selected = read.getSelectedPanel();
+		assertTrue(selected instanceof SeparatorPanel);
+		assertEquals(figure.getSelectedPanel().getX(), selected.getX());
+		assertEquals(figure.getSelectedPanel().getY(), selected.getY());
+	}
+
+	@Test
+	public void selectsLeavesOfVersion3Documents() throws Exception {
+		// before version 4 the number of the selected leaf was written
+		MainWindow figure = createFigure(3, 3);
+		assertSame(figure.getLeaves().get(3), figure.getSelectedPanel());
+	}
+
+	@Test
+	public void convertsSerializedFigures() throws Exception {
+		MainWindow figure = createFigure(2, FigureFile.version);
+		File serialized = folder.newFile();
+		ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(serialized));
+		try {
+			out.writeObject(figure);
+		} finally {
+			out.close();
+		}
+		assertFalse(FigureFile.isCurrentFormat(serialized.getPath()));
+		MainWindow legacy = FigureFile.open(serialized.getPath(), true);
+		assertSameFigure(figure, legacy);
+		assertSameFigure(figure, saveAndOpen(legacy, false));
+	}
+
+	@Test
+	public void replacesTheFileOnlyWhenItIsWritten() throws Exception {
+		File folder = this.folder.newFolder();
+		String path = new File(folder, "figure.figurej").getPath();
+		FigureFile.write(createFigure(2, FigureFile.version), path);
+		MainWindow figure = createFigure(3, FigureFile.version);
+		FigureFile.write(figure, path);
+		assertArrayEquals("no temporary file left", new String[] { "figure.figurej" }, folder.list());
+		assertSameFigure(figure, FigureFile.open(path, false));
+	}
+}
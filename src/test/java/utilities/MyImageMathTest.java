@@ -0,0 +1,69 @@
+package utilities;
+
+import static org.junit.Assert.assertArrayEquals;
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.process.ColorProcessor;
+
+import java.io.File;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import dataSets.DataSourceLoader;
+
+/*
+ * pixels extracted from one series of a multi-series file must not be returned for another series of the
+ * same file, even if region, panel size, plane and display settings are the same.
+ */
+public class MyImageMathTest {
+
+	private static final int w = 40;
+	private static final int h = 30;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/** @return an image of the series as DataSourceLoader.openSeries returns it, read from the file */
+	private static ImagePlus openSeries(File file, int series, int[] pixels) {
+		ImagePlus imp = new ImagePlus("series " + series, new ColorProcessor(w, h, pixels.clone()));
+		FileInfo fi = new FileInfo();
+		fi.directory = file.getParent() + File.separator;
+		fi.fileName = file.getName();
+		imp.setFileInfo(fi);
+		imp.setProperty(DataSourceLoader.seriesProperty, Integer.valueOf(series));
+		return imp;
+	}
+
+	private static int[] randomPixels(long seed) {
+		Random random = new Random(seed);
+		int[] pixels = new int[w * h];
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = random.nextInt() & 0xffffff;
+		return pixels;
+	}
+
+	private static int[] rgb(int[] pixels) {
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] &= 0xffffff;
+		return pixels;
+	}
+
+	@Test
+	public void keepsTheSeriesOfAFileApart() throws Exception {
+		File file = folder.newFile("cells.lif");
+		int[] first = randomPixels(1);
+		int[] second = randomPixels(2);
+		double[] xVals = { 0, 0, w, w };
+		double[] yVals = { 0, h, h, 0 };
+		for (int round = 0; round < 2; round++) {
+			// the second round is answered from the cache
+			int[] a = MyImageMath.getPixels(openSeries(file, 0, first), xVals, yVals, w, h, "nearest neighbor");
+			int[] b = MyImageMath.getPixels(openSeries(file, 1, second), xVals, yVals, w, h, "nearest neighbor");
+			assertArrayEquals("series 1, round " + round, first, rgb(a));
+			assertArrayEquals("series 2, round " + round, second, rgb(b));
+		}
+	}
+}
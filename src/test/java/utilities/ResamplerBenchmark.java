@@ -0,0 +1,51 @@
+package utilities;
+
+import java.util.Random;
+
+/**
+ * times the resampling of a tilted region to a print sized panel split into 1 to 16 stripes. the worker
+ * pool has a thread per processor, so up to that number every stripe gets a thread of its own. the source,
+ * its coefficients and a warm up are computed before timing. not run with the tests:
+ * java -cp target/classes:target/test-classes:ij.jar utilities.ResamplerBenchmark [size rounds interpolation]
+ */
+public class ResamplerBenchmark {
+
+	private static final int[] stripes = { 1, 2, 3, 4, 6, 8, 12, 16 };
+
+	public static void main(String[] args) {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 3000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		String interpolation = args.length > 2 ? args[2] : "cubic B-spline";
+		Random random = new Random(1);
+		int[] src = new int[size * size];
+		for (int i = 0; i < src.length; i++)
+			src[i] = random.nextInt() & 0xffffff;
+		// the source rotated by 30 degrees around its center, at the same size
+		double cos = Math.cos(Math.PI / 6), sin = Math.sin(Math.PI / 6);
+		double side = size / (cos + sin);
+		double x0 = size / 2.0 - (side * cos - side * sin) / 2, y0 = size / 2.0 - (side * sin + side * cos) / 2;
+		double[] xVals = { x0, x0 - side * sin, x0 - side * sin + side * cos, x0 + side * cos };
+		double[] yVals = { y0, y0 + side * cos, y0 + side * cos + side * sin, y0 + side * sin };
+
+		System.out.println(size + " x " + size + ", " + interpolation + ", " + WorkerPool.getThreadCount()
+				+ " worker threads");
+		// compiles the code before the first timing
+		Resampler warmUp = new Resampler(src, size, size, interpolation, 1);
+		for (int i = 0; i < 3; i++)
+			warmUp.resample(xVals, yVals, size, size);
+		double alone = 0;
+		for (int n : stripes) {
+			Resampler resampler = new Resampler(src, size, size, interpolation, n);
+			// computes the coefficients
+			resampler.resample(xVals, yVals, size, size);
+			long start = System.nanoTime();
+			for (int i = 0; i < rounds; i++)
+				resampler.resample(xVals, yVals, size, size);
+			double ms = (System.nanoTime() - start) / 1e6 / rounds;
+			if (n == 1)
+				alone = ms;
+			System.out.println(n + " stripes: " + String.format("%.1f", ms) + " ms, speedup "
+					+ String.format("%.2f", alone / ms));
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package utilities;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * the prefilter and the resampling split among the worker threads have to give exactly the pixels
+ * the calling thread computes alone.
+ */
+public class ResamplerParallelTest {
+
+	private static int[] resample(int[] src, int w, int h, String interpolation, int nrOfStripes) {
+		// a region tilted by 30 degrees, reduced and stretched
+		double cos = Math.cos(Math.PI / 6), sin = Math.sin(Math.PI / 6);
+		double[] xVals = { 40, 40 - 150 * sin, 40 - 150 * sin + 200 * cos, 40 + 200 * cos };
+		double[] yVals = { 60, 60 + 150 * cos, 60 + 150 * cos + 200 * sin, 60 + 200 * sin };
+		return new Resampler(src, w, h, interpolation, nrOfStripes).resample(xVals, yVals, 310, 170);
+	}
+
+	@Test
+	public void givesTheSamePixelsOnAnyNumberOfThreads() {
+		int w = 301, h = 263;
+		Random random = new Random(9);
+		int[] src = new int[w * h];
+		for (int i = 0; i < src.length; i++)
+			src[i] = random.nextInt() & 0xffffff;
+		for (String interpolation : MyImageMath.getInterpolationTypes()) {
+			int[] alone = resample(src, w, h, interpolation, 1);
+			for (int nrOfStripes : new int[] { 2, 7, 16 })
+				assertArrayEquals(interpolation + ", " + nrOfStripes + " stripes", alone,
+						resample(src, w, h, interpolation, nrOfStripes));
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package utilities;
+
+import static org.junit.Assert.assertArrayEquals;
+import ij.ImagePlus;
+import ij.process.ColorProcessor;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * the single pass resampling has to give the pixels the rotation and scaling of the former
+ * MyImageMath.getPixels gave where these are known exactly: unscaled regions keep their pixels for
+ * every interpolation (the splines interpolate the samples), regions tilted by 90 degrees are the
+ * rotated pixels and nearest neighbor magnification repeats every pixel.
+ */
+public class ResamplerTest {
+
+	private static final int w = 23;
+	private static final int h = 17;
+
+	private static int[] randomPixels(int w, int h, long seed) {
+		Random random = new Random(seed);
+		int[] pixels = new int[w * h];
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = random.nextInt() & 0xffffff;
+		return pixels;
+	}
+
+	private static int[] rgb(int[] pixels) {
+		int[] rgb = pixels.clone();
+		for (int i = 0; i < rgb.length; i++)
+			rgb[i] &= 0xffffff;
+		return rgb;
+	}
+
+	@Test
+	public void keepsTheRegionAtItsOwnSize() {
+		int[] src = randomPixels(w, h, 1);
+		for (String interpolation : MyImageMath.getInterpolationTypes()) {
+			int[] result = new Resampler(src, w, h, interpolation).resample(new double[] { 0, 0, w, w },
+					new double[] { 0, h, h, 0 }, w, h);
+			assertArrayEquals(interpolation, src, rgb(result));
+		}
+	}
+
+	@Test
+	public void rotatesByQuarterTurns() {
+		int[] src = randomPixels(w, h, 2);
+		ColorProcessor cp = new ColorProcessor(w, h, src.clone());
+		int[] right = rgb((int[]) cp.rotateRight().getPixels());
+		for (String interpolation : MyImageMath.getInterpolationTypes()) {
+			// upper edge of the region running up the left border of the image
+			int[] result = new Resampler(src, w, h, interpolation).resample(new double[] { 0, w, w, 0 },
+					new double[] { h, h, 0, 0 }, h, w);
+			assertArrayEquals(interpolation, right, rgb(result));
+		}
+	}
+
+	@Test
+	public void repeatsPixelsWhenMagnifyingNearestNeighbor() {
+		int[] src = randomPixels(w, h, 3);
+		int[] expected = new int[4 * w * h];
+		for (int y = 0; y < 2 * h; y++)
+			for (int x = 0; x < 2 * w; x++)
+				expected[y * 2 * w + x] = src[(y / 2) * w + x / 2];
+		int[] result = new Resampler(src, w, h, "nearest neighbor").resample(new double[] { 0, 0, w, w },
+				new double[] { 0, h, h, 0 }, 2 * w, 2 * h);
+		assertArrayEquals(expected, rgb(result));
+	}
+
+	@Test
+	public void extractsTheRegionOfTheImage() {
+		// MyImageMath crops the bounding box of the region and resamples it
+		int[] src = randomPixels(w, h, 4);
+		ImagePlus imp = new ImagePlus("source", new ColorProcessor(w, h, src.clone()));
+		int[] expected = new int[10 * 8];
+		for (int y = 0; y < 8; y++)
+			for (int x = 0; x < 10; x++)
+				expected[y * 10 + x] = src[(y + 5) * w + x + 3];
+		for (String interpolation : MyImageMath.getInterpolationTypes()) {
+			int[] result = MyImageMath.prepare(imp, new double[] { 3, 3, 13, 13 }, new double[] { 5, 13, 13, 5 }, 10, 8,
+					interpolation).compute(null);
+			assertArrayEquals(interpolation, expected, rgb(result));
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package utilities;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import dataSets.DataSource;
+
+/*
+ * the image files of a figure are stored once per content, under their own name as long as no other
+ * content has it; files the manifest knows unchanged are neither hashed nor copied again.
+ */
+public class SourceCopierTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private String a;
+	private String b;
+	private String figure;
+
+	@Before
+	public void createSources() throws IOException {
+		a = folder.newFolder("a").getPath() + File.separator;
+		b = folder.newFolder("b").getPath() + File.separator;
+		figure = folder.newFolder("figure").getPath() + File.separator;
+		write(a + "img.tif", "the first image");
+		write(b + "dup.tif", "the first image");
+		write(b + "img.tif", "another image");
+	}
+
+	private static void write(String path, String content) throws IOException {
+		FileOutputStream out = new FileOutputStream(path);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String read(String path) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(path, "r");
+		try {
+			byte[] bytes = new byte[(int) in.length()];
+			in.readFully(bytes);
+			return new String(bytes, "UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+
+	private static DataSource source(String directory, String name) {
+		DataSource d = new DataSource();
+		d.setFileDirectory(directory);
+		d.setFileName(name);
+		return d;
+	}
+
+	private List<DataSource> sources() {
+		return new ArrayList<DataSource>(Arrays.asList(source(a, "img.tif"), source(b, "dup.tif"),
+				source(b, "img.tif")));
+	}
+
+	private String[] figureFiles() {
+		String[] files = new File(figure).list();
+		Arrays.sort(files);
+		return files;
+	}
+
+	@Test
+	public void storesEveryContentOnce() throws IOException {
+		List<DataSource> sources = sources();
+		new SourceCopier(figure).copy(sources);
+
+		String other = "img_" + SourceCopier.hash(new File(b + "img.tif")).substring(0, 8) + ".tif";
+		for (DataSource d : sources)
+			assertEquals(figure, d.getFileDirectory());
+		assertEquals("img.tif", sources.get(0).getFileName());
+		assertEquals("same content, same copy", "img.tif", sources.get(1).getFileName());
+		assertEquals("same name, other content", other, sources.get(2).getFileName());
+		assertArrayEquals(new String[] { "img.tif", other, SourceCopier.manifestName }, figureFiles());
+		assertEquals("the first image", read(figure + "img.tif"));
+		assertEquals("another image", read(figure + other));
+	}
+
+	@Test
+	public void skipsFilesTheManifestKnowsUnchanged() throws IOException {
+		new SourceCopier(figure).copy(sources());
+		// whole seconds, some file systems store no more
+		long copied = (new File(figure + "img.tif").lastModified() / 1000 - 10) * 1000;
+		new File(figure + "img.tif").setLastModified(copied);
+
+		// same size and modification time: taken from the manifest without reading the file
+		long modified = new File(a + "img.tif").lastModified();
+		write(a + "img.tif", "THE FIRST IMAGE");
+		new File(a + "img.tif").setLastModified(modified);
+		List<DataSource> sources = sources();
+		new SourceCopier(figure).copy(sources);
+		assertEquals("img.tif", sources.get(0).getFileName());
+		assertEquals("not copied again", copied, new File(figure + "img.tif").lastModified());
+		assertEquals("the first image", read(figure + "img.tif"));
+
+		// saving the figure again with the data sources pointing to the copies
+		new SourceCopier(figure).copy(sources);
+		assertEquals("img.tif", sources.get(0).getFileName());
+		assertEquals(3, figureFiles().length);
+
+		// a changed modification time makes the file hashed and stored as other content
+		new File(a + "img.tif").setLastModified((modified / 1000 - 10) * 1000);
+		sources = sources();
+		new SourceCopier(figure).copy(sources);
+		assertNotEquals("img.tif", sources.get(0).getFileName());
+		assertEquals("THE FIRST IMAGE", read(figure + sources.get(0).getFileName()));
+		assertEquals("the first image", read(figure + "img.tif"));
+		assertEquals(4, figureFiles().length);
+	}
+}
@@ -0,0 +1,122 @@
+package windows;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.gui.Overlay;
+import ij.process.ColorProcessor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import treeMap.ContainerPanel;
+import treeMap.LeafPanel;
+import utilities.FigureFile;
+
+/*
+ * figures written without their window have no image of the whole figure: tiled exports are composited
+ * band by band, other figures only while they are written.
+ */
+public class HeadlessExportTest {
+
+	private static final int w = 700;
+	private static final int h = 500;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@After
+	public void resetExport() {
+		Prefs.set("figurej.tiledExport", false);
+	}
+
+	/** @return a figure as read from a file, split into leaves with random pixels in every second one */
+	private static MainWindow createFigure() throws IOException {
+		ContainerPanel root = new ContainerPanel(0, 0, w, h);
+		root.setPanelColor(0x336699);
+		LeafPanel first = new LeafPanel(0, 0, w, h);
+		root.addChild(first);
+		first.split(3, true);
+		root.getLeaves(new ArrayList<LeafPanel>()).get(1).split(2, false);
+		Random random = new Random(1);
+		List<LeafPanel> leaves = root.getLeaves(new ArrayList<LeafPanel>());
+		for (int i = 0; i < leaves.size(); i += 2) {
+			LeafPanel leaf = leaves.get(i);
+			int[] pixels = new int[leaf.getW() * leaf.getH()];
+			for (int j = 0; j < pixels.length; j++)
+				pixels[j] = random.nextInt() & 0xffffff;
+			leaf.setPixels(pixels);
+		}
+
+		ByteArrayOutputStream document = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(document);
+		out.writeDouble(300);
+		out.writeInt(w);
+		out.writeInt(h);
+		out.writeInt(root.getSeparatorWidth());
+		out.writeInt(root.getPanelColor());
+		out.writeInt(10);
+		out.writeInt(0);
+		root.write(out);
+		MainWindow figure = MainWindow.read(new DataInputStream(new ByteArrayInputStream(document.toByteArray())),
+				FigureFile.version);
+		for (int i = 0; i < leaves.size(); i += 2)
+			figure.getLeaves().get(i).setPixels(leaves.get(i).getPixelsCopy());
+		return figure;
+	}
+
+	private static int[] rgb(int[] pixels) {
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] &= 0xffffff;
+		return pixels;
+	}
+
+	@Test
+	public void writesFiguresThatFitIntoMemory() throws Exception {
+		MainWindow figure = createFigure();
+		figure.initHeadless();
+		assertNull(figure.getImagePlus());
+		String dir = folder.getRoot().getPath() + File.separator;
+		figure.writeImage(dir, "figure");
+		assertNull("no image is kept", figure.getImagePlus());
+
+		ImagePlus expected = new ImagePlus("expected", new ColorProcessor(w, h));
+		expected.setOverlay(new Overlay());
+		figure.getRootPanel().draw(expected);
+		ImagePlus written = IJ.openImage(dir + "FullResolution_figure.tif");
+		assertEquals(w, written.getWidth());
+		assertEquals(h, written.getHeight());
+		assertArrayEquals(rgb((int[]) expected.getProcessor().getPixels()),
+				rgb((int[]) written.getProcessor().getPixels()));
+		assertTrue(new File(dir + "JpegCompressed_figure.jpg").isFile());
+	}
+
+	@Test
+	public void exportsTiledFiguresBandByBand() throws Exception {
+		Prefs.set("figurej.tiledExport", true);
+		MainWindow figure = createFigure();
+		figure.initHeadless();
+		String dir = folder.getRoot().getPath() + File.separator;
+		figure.writeImage(dir, "figure");
+		assertNull(figure.getImagePlus());
+		assertTrue(new File(dir + "FullResolution_figure.tif").length() > 0);
+		assertFalse("no jpeg of tiled exports", new File(dir + "JpegCompressed_figure.jpg").exists());
+	}
+}